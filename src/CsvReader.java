@@ -0,0 +1,237 @@
+/*
+ * Streaming reader for simple comma separated files (no quoting), such as waypoint and marker files.
+ * The file is read through a fixed size buffer one line at a time, so memory use does not depend on the
+ * size of the file, only on the length of the longest line.
+ *
+ * Fields are located by scanning the line's bytes for commas, and numbers are parsed directly from those
+ * bytes.  Errors are reported as a ParseException which gives the line number and field.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class CsvReader implements Closeable {
+  private static final double[]     pow10 = new double[16];
+  private final ReadableByteChannel channel;
+  private final ByteBuffer          buf = ByteBuffer.allocate(64 * 1024);
+  private byte[]                    line = new byte[256];
+  private int[]                     starts = new int[8], ends = new int[8];
+  private int                       fields, lineNum;
+  private boolean                   eof;
+
+  static {
+    pow10[0] = 1;
+    for (int ii = 1; ii < pow10.length; ii++) {
+      pow10[ii] = pow10[ii - 1] * 10;
+    }
+  }
+
+  static class ParseException extends IOException {
+    private static final long serialVersionUID = 5902347716205190438L;
+    final int line;
+
+    ParseException (int line, String msg) {
+      super("Line " + line + ": " + msg);
+      this.line = line;
+    }
+  }
+
+  CsvReader (File file) throws IOException {
+    this(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+  }
+
+  CsvReader (ReadableByteChannel channel) {
+    this.channel = channel;
+    buf.flip();
+  }
+
+  /**
+   * Advance to the next line which is not blank
+   * @return false at end of file
+   */
+  boolean next () throws IOException {
+    while (readLine()) {
+      if (fields > 1 || ends[0] > starts[0]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  int getFieldCount () {
+    return fields;
+  }
+
+  String getString (int field) throws ParseException {
+    check(field);
+    return new String(line, starts[field], ends[field] - starts[field], StandardCharsets.UTF_8);
+  }
+
+  int getInt (int field) throws ParseException {
+    check(field);
+    int pos = starts[field], end = ends[field];
+    boolean neg = pos < end && line[pos] == '-';
+    if (neg || (pos < end && line[pos] == '+')) {
+      pos++;
+    }
+    if (pos == end || end - pos > 10) {
+      throw invalid(field, "integer");
+    }
+    long val = 0;
+    for (; pos < end; pos++) {
+      int digit = line[pos] - '0';
+      if (digit < 0 || digit > 9) {
+        throw invalid(field, "integer");
+      }
+      val = val * 10 + digit;
+    }
+    val = neg ? -val : val;
+    if (val < Integer.MIN_VALUE || val > Integer.MAX_VALUE) {
+      throw invalid(field, "integer");
+    }
+    return (int) val;
+  }
+
+  double getDouble (int field) throws ParseException {
+    check(field);
+    int pos = starts[field], end = ends[field];
+    boolean neg = pos < end && line[pos] == '-';
+    if (neg || (pos < end && line[pos] == '+')) {
+      pos++;
+    }
+    long mant = 0;
+    int digits = 0, frac = -1;
+    boolean any = false;
+    for (; pos < end; pos++) {
+      byte cc = line[pos];
+      if (cc >= '0' && cc <= '9') {
+        mant = mant * 10 + (cc - '0');
+        any = true;
+        if (mant > 0) {
+          digits++;
+        }
+        if (frac >= 0) {
+          frac++;
+        }
+      } else if (cc == '.' && frac < 0) {
+        frac = 0;
+      } else {
+        break;
+      }
+    }
+    if (pos < end || digits > 15 || frac >= pow10.length) {
+      // Exponents, and values with too many digits to convert exactly here, are left to the JDK
+      try {
+        return Double.parseDouble(getString(field));
+      } catch (NumberFormatException ex) {
+        throw invalid(field, "number");
+      }
+    }
+    if (!any) {
+      throw invalid(field, "number");
+    }
+    // Note: mant and 10^frac are both exact doubles, so the division is correctly rounded
+    double val = frac > 0 ? mant / pow10[frac] : mant;
+    return neg ? -val : val;
+  }
+
+  ParseException error (String msg) {
+    return new ParseException(lineNum, msg);
+  }
+
+  public void close () throws IOException {
+    channel.close();
+  }
+
+  private void check (int field) throws ParseException {
+    if (field >= fields) {
+      throw error("Expected at least " + (field + 1) + " fields, found " + fields);
+    }
+  }
+
+  private ParseException invalid (int field, String type) {
+    String text = new String(line, starts[field], ends[field] - starts[field], StandardCharsets.UTF_8);
+    return error("Invalid " + type + " \"" + text + "\" in field " + (field + 1));
+  }
+
+  // Read the next line (of any length) into line[] and find the start and end of each field
+  private boolean readLine () throws IOException {
+    int len = 0;
+    boolean any = false;
+    while (true) {
+      if (!buf.hasRemaining()) {
+        if (eof || !fill()) {
+          if (!any) {
+            return false;
+          }
+          break;
+        }
+      }
+      any = true;
+      byte cc = buf.get();
+      if (cc == '\n') {
+        break;
+      } else if (cc == '\r') {
+        // Treat "\r\n" as one line end
+        if (buf.hasRemaining() || (!eof && fill())) {
+          if (buf.get(buf.position()) == '\n') {
+            buf.get();
+          }
+        }
+        break;
+      }
+      if (len == line.length) {
+        line = Arrays.copyOf(line, len * 2);
+      }
+      line[len++] = cc;
+    }
+    lineNum++;
+    fields = 0;
+    int start = 0;
+    for (int ii = 0; ii <= len; ii++) {
+      if (ii == len || line[ii] == ',') {
+        addField(start, ii);
+        start = ii + 1;
+      }
+    }
+    return true;
+  }
+
+  private void addField (int start, int end) {
+    // Ignore spaces around a field
+    while (start < end && (line[start] & 0xFF) <= ' ') {
+      start++;
+    }
+    while (end > start && (line[end - 1] & 0xFF) <= ' ') {
+      end--;
+    }
+    if (fields == starts.length) {
+      starts = Arrays.copyOf(starts, fields * 2);
+      ends = Arrays.copyOf(ends, fields * 2);
+    }
+    starts[fields] = start;
+    ends[fields] = end;
+    fields++;
+  }
+
+  private boolean fill () throws IOException {
+    buf.clear();
+    int read;
+    do {
+      read = channel.read(buf);
+    } while (read == 0);
+    buf.flip();
+    if (read < 0) {
+      eof = true;
+      return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Streaming writer for simple comma separated files (see CsvReader).  Output is formatted directly into a
+ * fixed size buffer which is written to the channel whenever it fills, so memory use does not depend on
+ * the amount written.  Numbers are formatted without DecimalFormat, so a writer needs no shared state
+ * and can be used from any thread.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+public class CsvWriter implements Closeable {
+  private static final long[]       pow10 = new long[19];
+  private final WritableByteChannel channel;
+  private final ByteBuffer          buf = ByteBuffer.allocate(64 * 1024);
+  private final byte[]              digits = new byte[20];
+  private boolean                   first = true;
+
+  static {
+    pow10[0] = 1;
+    for (int ii = 1; ii < pow10.length; ii++) {
+      pow10[ii] = pow10[ii - 1] * 10;
+    }
+  }
+
+  CsvWriter (File file) throws IOException {
+    this(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+  }
+
+  CsvWriter (WritableByteChannel channel) {
+    this.channel = channel;
+  }
+
+  CsvWriter field (String val) throws IOException {
+    separator();
+    byte[] bytes = val.getBytes(StandardCharsets.UTF_8);
+    int pos = 0;
+    while (pos < bytes.length) {
+      if (!buf.hasRemaining()) {
+        drain();
+      }
+      int len = Math.min(buf.remaining(), bytes.length - pos);
+      buf.put(bytes, pos, len);
+      pos += len;
+    }
+    return this;
+  }
+
+  CsvWriter field (long val) throws IOException {
+    separator();
+    reserve(20);
+    putLong(val);
+    return this;
+  }
+
+  // Note: uses the shortest representation which reads back as the same value (see Double.toString())
+  CsvWriter field (double val) throws IOException {
+    return field(Double.toString(val));
+  }
+
+  /**
+   * Write a number with a fixed number of decimal places (rounded half up)
+   */
+  CsvWriter field (double val, int decimals) throws IOException {
+    if (decimals >= pow10.length || !(Math.abs(val) * pow10[decimals] < Long.MAX_VALUE / 10)) {
+      // Note: also true for NaN and infinite values
+      return field(Double.toString(val));
+    }
+    double scaled = Math.abs(val) * pow10[decimals];
+    separator();
+    reserve(22 + decimals);
+    long fixed = Math.round(scaled);
+    if (val < 0 && fixed != 0) {
+      buf.put((byte) '-');
+    }
+    putLong(fixed / pow10[decimals]);
+    if (decimals > 0) {
+      buf.put((byte) '.');
+      long frac = fixed % pow10[decimals];
+      for (int ii = decimals - 1; ii >= 0; ii--) {
+        buf.put((byte) ('0' + frac / pow10[ii] % 10));
+      }
+    }
+    return this;
+  }
+
+  CsvWriter endLine () throws IOException {
+    reserve(1);
+    buf.put((byte) '\n');
+    first = true;
+    return this;
+  }
+
+  void flush () throws IOException {
+    drain();
+  }
+
+  public void close () throws IOException {
+    try {
+      drain();
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void separator () throws IOException {
+    if (!first) {
+      reserve(1);
+      buf.put((byte) ',');
+    }
+    first = false;
+  }
+
+  private void putLong (long val) {
+    if (val < 0) {
+      buf.put((byte) '-');
+    }
+    int len = 0;
+    do {
+      digits[len++] = (byte) ('0' + Math.abs(val % 10));
+      val /= 10;
+    } while (val != 0);
+    while (len > 0) {
+      buf.put(digits[--len]);
+    }
+  }
+
+  private void reserve (int bytes) throws IOException {
+    if (buf.remaining() < bytes) {
+      drain();
+    }
+  }
+
+  private void drain () throws IOException {
+    buf.flip();
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+    buf.clear();
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Append-only journal of edits made since a snapshot was last saved, so edits can be recovered after a
+ * crash without rewriting the whole snapshot after each one.
+ *
+ * File layout (all values big endian):
+ *
+ *   Header     int    magic ("GMJ1")
+ *              long   generation of the snapshot the edits apply to
+ *   Records    int    length of data
+ *              byte   op
+ *              byte[] data
+ *              int    CRC32 of op and data
+ *
+ * Records are queued by append(), which only encodes them, and written in batches (then fsynced) by a
+ * background thread.  Compacting the journal saves a new snapshot with a new generation, then starts a new
+ * journal with that generation.  A journal whose generation does not match its snapshot is ignored, so
+ * edits are never replayed twice if the app stops between saving the snapshot and starting the journal.
+ *
+ * Replay stops at the first truncated, or damaged record (the tail of a write that was interrupted).
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+public class EditJournal implements Closeable {
+  private static final int                  magic = 0x474D4A31;      // "GMJ1"
+  private static final int                  headerSize = 12;
+  private static final long                 flushDelay = 1000;       // Milliseconds records wait to be batched
+  private final FileChannel                 channel;
+  private final ScheduledExecutorService    writer;
+  private final List<Object>                pending = new ArrayList<>();    // Records and Compactions, in order
+  private boolean                           flushScheduled;
+  private int                               count;
+
+  interface Snapshot {
+    void write () throws IOException;
+  }
+
+  interface RecordVisitor {
+    void visit (int op, ByteBuffer data);
+  }
+
+  private static class Compaction {
+    private final long      generation;
+    private final Snapshot  snapshot;
+
+    private Compaction (long generation, Snapshot snapshot) {
+      this.generation = generation;
+      this.snapshot = snapshot;
+    }
+  }
+
+  /**
+   * Start a new, empty journal (replacing any existing journal)
+   * @param generation generation of the snapshot the edits will apply to
+   */
+  EditJournal (File file, long generation) throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    try {
+      start(generation);
+    } catch (IOException ex) {
+      channel.close();
+      throw ex;
+    }
+    writer = Executors.newSingleThreadScheduledExecutor(run -> {
+      Thread thread = new Thread(run, "EditJournal");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Queue a record to be written
+   * @param data record data (up to the buffer's position)
+   */
+  synchronized void append (int op, ByteBuffer data) {
+    data.flip();
+    int len = data.remaining();
+    ByteBuffer rec = ByteBuffer.allocate(9 + len);
+    rec.putInt(len).put((byte) op).put(data);
+    CRC32 check = new CRC32();
+    check.update(rec.array(), 4, len + 1);
+    rec.putInt((int) check.getValue());
+    rec.flip();
+    pending.add(rec);
+    count++;
+    if (!flushScheduled) {
+      flushScheduled = true;
+      writer.schedule(this::flushPending, flushDelay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  // Number of records appended since the last compaction
+  synchronized int getCount () {
+    return count;
+  }
+
+  /**
+   * Queue a compaction.  Records appended before it are written to the current journal, then the snapshot
+   * (which must include them) is written, then a new journal is started for the records which follow it.
+   * If the snapshot can not be written, the current journal is kept.
+   */
+  synchronized void compact (long generation, Snapshot snapshot) {
+    pending.add(new Compaction(generation, snapshot));
+    count = 0;
+    writer.submit(this::flushPending);
+  }
+
+  /**
+   * Write all queued records and compactions, and wait for them to be written
+   */
+  void flush () throws IOException {
+    try {
+      writer.submit(this::write).get();
+    } catch (ExecutionException ex) {
+      throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+    } catch (InterruptedException ex) {
+      throw new InterruptedIOException("Interrupted while writing journal");
+    }
+  }
+
+  public void close () throws IOException {
+    try {
+      flush();
+    } finally {
+      writer.shutdown();
+      channel.close();
+    }
+  }
+
+  private void flushPending () {
+    try {
+      write();
+    } catch (IOException ex) {
+      ex.printStackTrace(System.out);
+    }
+  }
+
+  // Note: only called on the writer thread
+  private Void write () throws IOException {
+    List<Object> items;
+    synchronized (this) {
+      items = new ArrayList<>(pending);
+      pending.clear();
+      flushScheduled = false;
+    }
+    IOException error = null;
+    List<ByteBuffer> batch = new ArrayList<>();
+    for (Object item : items) {
+      if (item instanceof ByteBuffer) {
+        batch.add((ByteBuffer) item);
+      } else {
+        writeAll(batch);
+        batch.clear();
+        Compaction comp = (Compaction) item;
+        try {
+          channel.force(false);
+          comp.snapshot.write();
+          start(comp.generation);
+        } catch (IOException ex) {
+          error = ex;
+        }
+      }
+    }
+    writeAll(batch);
+    channel.force(false);
+    if (error != null) {
+      throw error;
+    }
+    return null;
+  }
+
+  private void writeAll (List<ByteBuffer> batch) throws IOException {
+    ByteBuffer[] bufs = batch.toArray(new ByteBuffer[0]);
+    long remaining = 0;
+    for (ByteBuffer buf : bufs) {
+      remaining += buf.remaining();
+    }
+    while (remaining > 0) {
+      remaining -= channel.write(bufs);
+    }
+  }
+
+  private void start (long generation) throws IOException {
+    channel.truncate(0);
+    ByteBuffer header = ByteBuffer.allocate(headerSize).putInt(magic).putLong(generation);
+    header.flip();
+    channel.write(header, 0);
+    channel.position(headerSize);
+    channel.force(true);
+  }
+
+  /**
+   * Replay the records in a journal
+   * @param generation generation of the snapshot the records must apply to
+   * @return number of records replayed (0 if there is no journal, it is empty, or it is for a different snapshot)
+   * @throws IOException if file is not a journal, or the visitor fails to apply a record
+   */
+  static int replay (File file, long generation, RecordVisitor visitor) throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+    ByteBuffer buf;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < headerSize) {
+        // Note: app stopped after start() truncated the journal, but before it wrote the header
+        return 0;
+      }
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Not an edit journal: " + file);
+      }
+      buf = ByteBuffer.allocate((int) size);
+      while (buf.hasRemaining() && channel.read(buf) >= 0);
+      buf.flip();
+    }
+    if (buf.getInt() != magic) {
+      throw new IOException("Not an edit journal: " + file);
+    }
+    if (buf.getLong() != generation) {
+      return 0;
+    }
+    int count = 0;
+    while (buf.remaining() >= 9) {
+      int len = buf.getInt();
+      if (len < 0 || len > buf.remaining() - 5) {
+        break;
+      }
+      int start = buf.position();
+      CRC32 check = new CRC32();
+      check.update(buf.array(), start, len + 1);
+      if ((int) check.getValue() != buf.getInt(start + len + 1)) {
+        break;
+      }
+      int op = buf.get(start);
+      buf.position(start + 1);
+      ByteBuffer data = buf.slice();
+      data.limit(len);
+      buf.position(start + len + 5);
+      try {
+        visitor.visit(op, data);
+      } catch (RuntimeException ex) {
+        throw new IOException("Invalid record " + count + " in edit journal: " + file, ex);
+      }
+      count++;
+    }
+    return count;
+  }
+}
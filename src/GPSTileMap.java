@@ -12,13 +12,23 @@ import java.awt.event.*;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
 import java.io.*;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.IntConsumer;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
  /*
@@ -61,6 +71,7 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
   private static final int    OPEN_KEY  = KeyEvent.VK_O;
   private static final int    CREATE_KEY  = KeyEvent.VK_C;
   private static final int    QUIT_KEY  = KeyEvent.VK_Q;
+  private static final int    UNDO_KEY  = KeyEvent.VK_Z;
   private static String       osName = System.getProperty("os.name").toLowerCase();
   private static String       userDir = System.getProperty("user.home") + "/Library/" + GPSTileMap.class.getName();
   private JMenuBar            menuBar;
@@ -68,6 +79,7 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
   private GPSMap              gpsMap;
   private CarLink             carLink;
   private JMenu               fileMenu;
+  private JMenu               editMenu;
   private JMenu               zoomMenu;
   private JMenu               optMenu;
   private JMenu               waypointMenu;
@@ -81,7 +93,9 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
   private transient Preferences prefs = Preferences.userRoot().node(this.getClass().getName());
   private static String       mapKey;
   private static TSAGeoMag    magModel;
-  private volatile boolean    simRun;
+  private SimEngine           simEngine;
+  private long                shownTick;
+  private TileCache           tileCache;
 
   {
     // Clear out any old preferences so any stored objects can be regenerated
@@ -205,7 +219,7 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       if ("stanchion".equals(state)) {
         int last = gpsMap.markSet.markers.size() - 1;
         if (last > 0 && gpsMap.markSet.markers.get(last).type == GPSMap.MarkerType.POLY) {
-          gpsMap.markSet.markers.add(new GPSMap.Marker(false));
+          gpsMap.addMarker(new GPSMap.Marker(false));
         }
       }
       if (gpsMap != null)
@@ -232,22 +246,35 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
     private static final double   pixelsPerLonDegree = tileSize / 360.0;
     private static final double   pixelsPerLonRadian = tileSize / (2.0 * Math.PI);
     private static final double   originX = tileSize / 2.0, originY = tileSize / 2.0;
-    private static final int      BaseZoom = 19;
-    private static final int      MaxZoom = 21;
+    private static final int      MinZoom = 17;       // Lowest zoom level, and lowest level of the map tile pyramid
+    private static final int      MaxZoom = 21;       // Highest level of the map tile pyramid (zoom of map images)
+    private static final int      MaxViewZoom = 22;   // Highest zoom level (magnifies MaxZoom tiles)
+    private static final double   indexCellSize = 1.0 / (1 << 15);    // 64 pixels at MaxZoom (in world coordinates)
     private static Dimension[]    zoomLevels = {new Dimension(2048, 2048), new Dimension(4096, 4096), new Dimension(8192, 8192)};
     private MapSet                mapSet;
     private MarkSet               markSet;
-    private transient Image       offScr;
-    private Dimension             win, lastWin;
+    private transient VolatileImage backBuf;
+    private Dimension             win;
     private boolean               screenRotate;   // rotate 180 if true
     private JTextField            toolInfo;
-    private int                   sX, sY, pX, pY, offX, offY;
-    private int                   zoom;
+    private int                   sX, sY;
+    private double                pX, pY, offX, offY;
+    private double                zoom, worldScale;
+    private double                winX, winY;         // window's upper left corner (in world coordinates scaled by worldScale)
+    private int                   viewStamp;          // changed whenever zoom, or window position changes
+    private Stroke                thickStroke, carStroke;
+    private final Layer           mapLayer = new Layer(Transparency.OPAQUE);
+    private final Layer           markerLayer = new Layer(Transparency.TRANSLUCENT);
+    private final Layer           wayLayer = new Layer(Transparency.TRANSLUCENT);
     private int                   check;
     private boolean               showMarkers, moveMarkers, showNumbers, showSettings, showWayLines;
     private Point                 tapeStart, tapeEnd;
     private String                tool;
     private Drawable              selected;
+    private Runnable              dragUndo;           // restores selected item to where it was before being dragged
+    private boolean               dragged;
+    final UndoHistory             history = new UndoHistory(10000, 32L << 20);
+    private TileImageCache        tileImages;
     Settings                      settings = new Settings();
     private transient Preferences prefs;
     private transient GPSTileMap  gpsTileMap;
@@ -282,17 +309,24 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       private Point[]             ulLoc = new Point[3];
       private Point[]             mapLoc = new Point[3];
       private transient Image[]   maps = new Image[3];
-      private byte[]              imgData;
+      private byte[]              imgData;       // Only used to read legacy map files
       private LonLat              loc;
+      private transient MapFile   mapFile;
+      private transient TileDownloader fetcher;
+      private transient Set<Long> pending, failed;
+      private transient Runnable  onTile;
 
       MapSet (String name, LonLat loc) {
         this.name = name;
         this.loc = loc;
         // Setup offsets for different zoom levels
         for (int ii = 0; ii < 3; ii++) {
-          mapLoc[ii] = lonLanToPixel(loc, ii + BaseZoom);
-          // Compute upper left corner of map
-          ulLoc[ii] = new Point(mapLoc[ii].x - zoomLevels[ii].width / 2, mapLoc[ii].y  - zoomLevels[ii].height / 2);
+          mapLoc[ii] = lonLanToPixel(loc, ii + MaxZoom - 2);
+        }
+        // Compute upper left corner of map's tile grid at MaxZoom and align grids for lower zoom levels with it
+        ulLoc[2] = new Point(mapLoc[2].x - zoomLevels[2].width / 2, mapLoc[2].y  - zoomLevels[2].height / 2);
+        for (int ii = 0; ii < 2; ii++) {
+          ulLoc[ii] = new Point(ulLoc[2].x >> (2 - ii), ulLoc[2].y >> (2 - ii));
         }
       }
 
@@ -307,68 +341,340 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
         return 0;
       }
 
+      private static File getMapFile (String name) {
+        return new File(userDir + "/" + name + ".map");
+      }
+
       static MapSet loadMapSet (String name) throws IOException, ClassNotFoundException {
-        File fName = new File(userDir + "/" + name + ".map");
-        FileInputStream fileIn = new FileInputStream(fName);
-        ObjectInputStream in = new ObjectInputStream(fileIn);
-        return (MapSet) in.readObject();
-     }
-
-      void saveMapSet () throws IOException {
-        getMap(MaxZoom);
-        File fName = new File(userDir + "/" + name + ".map");
-        if (!fName.exists()) {
-          FileOutputStream fileOut = new FileOutputStream(fName);
-          ObjectOutputStream out = new ObjectOutputStream(fileOut);
-          out.writeObject(this);
-          out.close();
-          fileOut.close();
-        }
-      }
-
-      // Compress images in maps[] to PNG temporarily saved to imgData[] then serialize to output stream
-      private void writeObject (ObjectOutputStream out) throws IOException {
+        File fName = getMapFile(name);
+        if (!MapFile.isMapFile(fName)) {
+          migrateMapSet(name, null);
+        }
+        MapFile mapFile = new MapFile(fName, true);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(mapFile.getMeta()));
+        MapSet mapSet = new MapSet(in.readUTF(), new LonLat(in.readDouble(), in.readDouble()));
+        mapSet.mapFile = mapFile;
+        return mapSet;
+      }
+
+      // True if map was saved as a serialized MapSet with a single PNG image and must be converted before use
+      static boolean needsMigration (String name) {
+        File fName = getMapFile(name);
+        return fName.exists() && !MapFile.isMapFile(fName);
+      }
+
+      // Convert map file saved as a serialized MapSet with a single PNG image into the tiled format
+      static void migrateMapSet (String name, IntConsumer progress) throws IOException, ClassNotFoundException {
+        File fName = getMapFile(name);
+        MapSet mapSet;
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(fName))) {
+          mapSet = (MapSet) in.readObject();
+        }
+        File tmp = new File(fName.getPath() + ".tmp");
+        mapSet.writeMapFile(tmp, progress);
+        Files.move(tmp.toPath(), fName.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+
+      /**
+       * Write maps[2] and the pyramid of lower zoom levels built from it to the map file, then switch to
+       * reading tiles from that file.  Replaces any existing map with the same name.
+       * @param progress receives percent complete (may be null)
+       */
+      void saveMapSet (IntConsumer progress) throws IOException {
+        File fName = getMapFile(name);
+        File tmp = new File(fName.getPath() + ".tmp");
+        writeMapFile(tmp, progress);
+        Files.move(tmp.toPath(), fName.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        mapFile = new MapFile(fName, true);
+        // Tiles are now read from the map file as needed
+        maps = new Image[3];
+      }
+
+      // Split maps[2] into tiles, build tiles for lower zoom levels from them and write them all to a new map file
+      private void writeMapFile (File fName, IntConsumer progress) throws IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        ImageIO.write((BufferedImage) maps[2], "png", bout);
-        imgData = bout.toByteArray();
-        out.defaultWriteObject();
-        imgData = null;
-     }
+        DataOutputStream meta = new DataOutputStream(bout);
+        meta.writeUTF(name);
+        meta.writeDouble(loc.lon);
+        meta.writeDouble(loc.lat);
+        meta.close();
+        BufferedImage src = (BufferedImage) maps[2];
+        int rootZoom = MaxZoom - 2;
+        int rootCols = zoomLevels[2].width / (MapFile.TILE_SIZE << (MaxZoom - rootZoom));
+        int rootRows = zoomLevels[2].height / (MapFile.TILE_SIZE << (MaxZoom - rootZoom));
+        // Each tile at rootZoom is the root of an independent subtree, so subtrees are built in parallel
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try (MapFile.Writer out = new MapFile.Writer(fName, bout.toByteArray())) {
+          AtomicInteger done = new AtomicInteger();
+          List<Future<BufferedImage>> roots = new ArrayList<>();
+          for (int row = 0; row < rootRows; row++) {
+            for (int col = 0; col < rootCols; col++) {
+              final int cc = col, rr = row;
+              roots.add(pool.submit(() -> {
+                BufferedImage tile = buildTile(out, src, rootZoom, cc, rr);
+                if (progress != null) {
+                  progress.accept(done.incrementAndGet() * 100 / (rootCols * rootRows));
+                }
+                return tile;
+              }));
+            }
+          }
+          BufferedImage[][] tiles = new BufferedImage[rootRows][rootCols];
+          for (int ii = 0; ii < roots.size(); ii++) {
+            tiles[ii / rootCols][ii % rootCols] = roots.get(ii).get();
+          }
+          // Then reduce the root tiles down to MinZoom
+          int cols = rootCols, rows = rootRows;
+          for (int zoom = rootZoom - 1; zoom >= MinZoom; zoom--) {
+            rows /= 2;
+            cols /= 2;
+            BufferedImage[][] next = new BufferedImage[rows][cols];
+            for (int row = 0; row < rows; row++) {
+              for (int col = 0; col < cols; col++) {
+                next[row][col] = boxFilter(tiles[row * 2][col * 2], tiles[row * 2][col * 2 + 1],
+                                           tiles[row * 2 + 1][col * 2], tiles[row * 2 + 1][col * 2 + 1]);
+                out.addTile(zoom, col, row, next[row][col]);
+              }
+            }
+            tiles = next;
+          }
+        } catch (ExecutionException ex) {
+          throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        } catch (InterruptedException ex) {
+          throw new InterruptedIOException("Map save cancelled");
+        } finally {
+          pool.shutdownNow();
+        }
+      }
+
+      /**
+       * Build (depth first) a tile and every tile below it in the pyramid, writing each one to the map file.
+       * Tiles at MaxZoom are cut from src and each lower level tile is a box filtered reduction of the four
+       * tiles below it, so only a few tiles per level are in memory at any one time.
+       */
+      private static BufferedImage buildTile (MapFile.Writer out, BufferedImage src, int zoom, int col, int row) throws IOException {
+        int size = MapFile.TILE_SIZE;
+        BufferedImage tile;
+        if (zoom == MaxZoom) {
+          tile = src.getSubimage(col * size, row * size, size, size);
+        } else {
+          tile = boxFilter(buildTile(out, src, zoom + 1, col * 2, row * 2),
+                           buildTile(out, src, zoom + 1, col * 2 + 1, row * 2),
+                           buildTile(out, src, zoom + 1, col * 2, row * 2 + 1),
+                           buildTile(out, src, zoom + 1, col * 2 + 1, row * 2 + 1));
+        }
+        out.addTile(zoom, col, row, tile);
+        return tile;
+      }
+
+      /**
+       * Reduce four adjoining tiles (upper left, upper right, lower left, lower right) into a single tile of
+       * the same size by averaging each 2x2 block of pixels.
+       */
+      private static BufferedImage boxFilter (BufferedImage... quads) {
+        int size = quads[0].getWidth();
+        int half = size / 2;
+        BufferedImage dst = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        int[] line0 = new int[size];
+        int[] line1 = new int[size];
+        int[] pixels = new int[half];
+        for (int qq = 0; qq < 4; qq++) {
+          BufferedImage quad = quads[qq];
+          int dx = (qq & 1) * half;
+          int dy = (qq >> 1) * half;
+          for (int yy = 0; yy < half; yy++) {
+            quad.getRGB(0, yy * 2, size, 1, line0, 0, size);
+            quad.getRGB(0, yy * 2 + 1, size, 1, line1, 0, size);
+            for (int xx = 0; xx < half; xx++) {
+              int p0 = line0[xx * 2], p1 = line0[xx * 2 + 1], p2 = line1[xx * 2], p3 = line1[xx * 2 + 1];
+              int red = (((p0 >> 16) & 0xFF) + ((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF) + ((p3 >> 16) & 0xFF) + 2) >> 2;
+              int grn = (((p0 >> 8) & 0xFF) + ((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF) + 2) >> 2;
+              int blu = ((p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF) + 2) >> 2;
+              pixels[xx] = (red << 16) | (grn << 8) | blu;
+            }
+            dst.setRGB(dx, dy + yy, half, 1, pixels, 0, half);
+          }
+        }
+        return dst;
+      }
 
-      // Read serialized PNG images into temp imgData[] then uncompress images into maps[]
+      // Read serialized PNG images into temp imgData[] then uncompress images into maps[] (legacy map files)
       private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         maps = new Image[3];
         ByteArrayInputStream bin = new ByteArrayInputStream(imgData);
         maps[2] = ImageIO.read(bin);
-        //FileOutputStream fOut = new FileOutputStream("/Users/wholder/Desktop/map.png");
-        //fOut.write(imgData);
-        //fOut.close();
+        imgData = null;
       }
 
-      private Image getMap (int zoom) {
-        int base = zoom - BaseZoom;
-        if (maps[base] == null) {
-          BufferedImage img = new BufferedImage(zoomLevels[base].width, zoomLevels[base].height, BufferedImage.TYPE_INT_RGB);
-          Graphics2D g1 = (Graphics2D) img.getGraphics();
-          g1.drawImage(maps[2], 0, 0, zoomLevels[base].width, zoomLevels[base].height, 0, 0, zoomLevels[2].width, zoomLevels[2].height, null);
-          maps[base] = img;
+      /**
+       * Draw the portion of the map visible in the window.  Tiles are drawn from the pyramid level nearest
+       * to zoom and scaled to fit, and only tiles which intersect the window are read from the map file and
+       * decoded.  Decoded tiles are held in the shared tile cache.
+       * @param zoom zoom level (may be fractional)
+       * @param originX x coordinate of window's upper left corner in world coordinates scaled by 2^zoom
+       * @param originY y coordinate of window's upper left corner in world coordinates scaled by 2^zoom
+       */
+      void drawMap (Graphics2D g2, double zoom, double originX, double originY, Dimension win, TileImageCache cache) {
+        if (mapFile == null) {
+          return;
         }
-        return maps[base];
+        int level = (int) Math.max(MinZoom, Math.min(MaxZoom, Math.round(zoom)));
+        double scale = Math.pow(2, zoom - level);
+        if (scale != 1.0) {
+          g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+        Point ul = getUlLoc(level);
+        int size = mapFile.getTileSize();
+        // Compute range of tiles in level which intersect window
+        int col0 = (int) Math.floor((originX / scale - ul.x) / size);
+        int row0 = (int) Math.floor((originY / scale - ul.y) / size);
+        int col1 = (int) Math.floor(((originX + win.width) / scale - ul.x - 1) / size);
+        int row1 = (int) Math.floor(((originY + win.height) / scale - ul.y - 1) / size);
+        for (int row = row0; row <= row1; row++) {
+          int y0 = (int) Math.floor((ul.y + row * size) * scale - originY);
+          int y1 = (int) Math.floor((ul.y + (row + 1) * size) * scale - originY);
+          for (int col = col0; col <= col1; col++) {
+            long key = TileImageCache.key(level, col, row);
+            BufferedImage tile = cache.get(key);
+            if (tile == null && mapFile.hasTile(level, col, row)) {
+              try {
+                tile = mapFile.readTile(level, col, row);
+              } catch (IOException | RuntimeException ex) {
+                ex.printStackTrace(System.out);
+              }
+              if (tile != null) {
+                cache.put(key, tile);
+              } else if (failed != null) {
+                // Note: a stored tile which can't be decoded is never replaced by a fetch, so don't request it
+                failed.add(TileImageCache.key(level, Math.floorDiv(col, 2), Math.floorDiv(row, 2)));
+              }
+            }
+            if (tile != null) {
+              int x0 = (int) Math.floor((ul.x + col * size) * scale - originX);
+              int x1 = (int) Math.floor((ul.x + (col + 1) * size) * scale - originX);
+              g2.drawImage(tile, x0, y0, x1 - x0, y1 - y0, null);
+            } else {
+              requestTile(level, col, row);
+            }
+          }
+        }
+      }
+
+      /**
+       * Get source for the Google Static Maps images that make up a zoom level.  Each image covers a 2x2
+       * block of tiles, so image (0, 0) covers tiles (0, 0) through (1, 1).  Images can extend in any
+       * direction from the map's original area, so col and row can be negative.
+       */
+      TileDownloader.TileSource getImageSource (int zoom) {
+        Point ul = getUlLoc(zoom);
+        return new TileDownloader.TileSource() {
+          public URL getTileUrl (int col, int row) throws IOException {
+            return new URL("http://maps.googleapis.com/maps/api/staticmap?" + getCacheKey(col, row) +
+                            "&sensor=false" + (mapKey != null ? "&key=" + mapKey : ""));
+          }
+
+          public String getCacheKey (int col, int row) {
+            Point pLoc = new Point(ul.x + col * imgTileSize + imgTileSize / 2, ul.y + row * imgTileSize + imgTileSize / 2);
+            return getTileParams(pixelToLonLat(pLoc, zoom), zoom);
+          }
+        };
+      }
+
+      /**
+       * Enable on demand loading of tiles outside the map's current area
+       * @param onTile called (from a download thread) when new tiles have been added to the map
+       */
+      void startFetching (TileCache cache, int threads, Runnable onTile) {
+        fetcher = new TileDownloader(threads, 2, 500, cache);
+        pending = ConcurrentHashMap.newKeySet();
+        failed = ConcurrentHashMap.newKeySet();
+        this.onTile = onTile;
+      }
+
+      // Fetch the image containing a missing tile in the background and add its tiles to the map file
+      private void requestTile (int zoom, int col, int row) {
+        if (fetcher == null) {
+          return;
+        }
+        int bCol = Math.floorDiv(col, 2);
+        int bRow = Math.floorDiv(row, 2);
+        long key = TileImageCache.key(zoom, bCol, bRow);
+        if (failed.contains(key) || !pending.add(key)) {
+          return;
+        }
+        fetcher.fetchAsync(getImageSource(zoom), bCol, bRow, (cc, rr, img) -> {
+          try {
+            int size = MapFile.TILE_SIZE;
+            for (int ii = 0; ii < 4; ii++) {
+              int dx = ii & 1;
+              int dy = ii >> 1;
+              if (!mapFile.hasTile(zoom, cc * 2 + dx, rr * 2 + dy)) {
+                ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                ImageIO.write(img.getSubimage(dx * size, dy * size, size, size), "png", bout);
+                mapFile.appendTile(zoom, cc * 2 + dx, rr * 2 + dy, bout.toByteArray());
+              }
+            }
+          } catch (IOException | RuntimeException ex) {
+            // Note: image may not be the expected size (an error image, etc)
+            failed.add(key);
+            ex.printStackTrace(System.out);
+          } finally {
+            pending.remove(key);
+          }
+          onTile.run();
+        }, ex -> {
+          // Don't keep asking for tiles that are unavailable until the map is reloaded
+          failed.add(key);
+          pending.remove(key);
+          System.out.println("Unable to fetch map tile: " + ex.getMessage());
+        });
+      }
+
+      void close () {
+        if (fetcher != null) {
+          fetcher.shutdown();
+        }
+        if (mapFile != null) {
+          try {
+            mapFile.close();
+          } catch (IOException ex) {
+            ex.printStackTrace(System.out);
+          }
+        }
+      }
+
+      // Upper left corner of the tile grid for a pyramid level (in pixels at that level)
+      private Point getUlLoc (int level) {
+        return new Point(ulLoc[2].x >> (MaxZoom - level), ulLoc[2].y >> (MaxZoom - level));
       }
 
-      private Point getUlLoc (int zoom) {
-        return ulLoc[zoom - BaseZoom];
+      // Upper left corner of the map (in world coordinates scaled by 2^zoom)
+      private Point2D.Double getOrigin (double zoom) {
+        double scale = Math.pow(2, zoom - MaxZoom);
+        return new Point2D.Double(ulLoc[2].x * scale, ulLoc[2].y * scale);
       }
     }
 
     private static class MarkSet implements Serializable {
       private static final long serialVersionUID = 7686575450447322227L;
+      // Edit journal record types
+      private static final int  WAY_ADD = 1, WAY_SET = 2, WAY_MOVE = 3, WAY_REMOVE = 4, WAY_CLEAR = 5;
+      private static final int  MARKER_ADD = 6, MARKER_SET = 7, MARKER_REMOVE = 8, REFERENCE = 9, CAR = 10;
+      private static final int  WAY_INSERT = 11, MARKER_INSERT = 12;
+      private static final int  compactCount = 10000;     // Journal records between snapshots
       private String            name;
       private List<Marker>      markers;
-      private List<Waypoint>    waypoints;
+      private List<Waypoint>    waypoints;                // Note: only used to read legacy .mrk files
+      private WaypointStore     wayStore;
       private GPSReference      gpsReference;
       private SimCar            simCar;
+      private transient SpatialGrid<Drawable> index;
+      private transient PolylineIndex wayLine, markerLine;
+      private transient volatile SimEngine.Route route;   // Waypoints as published to SimEngine (see getLiveRoute())
+      private transient int     maxDiameter;
+      private long              generation;               // Incremented each time a snapshot is saved
+      private transient EditJournal journal;
 
       private MarkSet (String name) {
         this.name = name;
@@ -377,47 +683,610 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
         } else {
           markers = new ArrayList<>();
         }
-        waypoints = new ArrayList<>();
+        wayStore = new WaypointStore();
       }
 
-      private void clearWaypoints () {
-        waypoints = new ArrayList<>();
+      // Note: returns the old waypoints, so the change can be undone
+      private WaypointStore clearWaypoints () {
+        WaypointStore old = wayStore;
+        wayStore = new WaypointStore();
+        invalidateIndex();
+        waypointsChanged();
+        record(WAY_CLEAR, ByteBuffer.allocate(0));
+        return old;
       }
 
-      static MarkSet load (String name) {
-        String fName = userDir + "/" + name + ".mrk";
-        try {
-          File file = new File(fName);
-          if (file.exists()) {
-            FileInputStream fileIn = new FileInputStream(file);
-            ObjectInputStream in = new ObjectInputStream(fileIn);
-            return (MarkSet) in.readObject();
-          } else {
-            return new MarkSet(name);
+      private void setWaypoints (WaypointStore wayStore) {
+        this.wayStore = wayStore;
+        invalidateIndex();
+        waypointsChanged();
+        compact();
+      }
+
+      private void setMarkers (List<Marker> markers) {
+        this.markers = markers;
+        invalidateIndex();
+        compact();
+      }
+
+      // Convert waypoints in legacy .mrk files (a list of Waypoint objects) into a WaypointStore
+      private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (wayStore == null) {
+          wayStore = new WaypointStore();
+          if (waypoints != null) {
+            for (Waypoint way : waypoints) {
+              wayStore.add(way.loc.lat, way.loc.lon, way.sel, way.heading, way.getFlags());
+            }
           }
-        } catch (Exception ex) {
-          System.out.println("Unable to save MarkSet: " + fName);
+        }
+        waypoints = null;
+      }
+
+      int getWaypointCount () {
+        return wayStore.size();
+      }
+
+      /**
+       * Get the waypoints as a route for a SimEngine, which follows any later changes to them.  Each change
+       * builds a new immutable route (see SimEngine.getRoute()) and publishes it through a volatile field,
+       * so the engine's thread never reads the WaypointStore while it is being changed.
+       */
+      Supplier<SimEngine.Route> getLiveRoute () {
+        if (route == null) {
+          route = SimEngine.getRoute(wayStore);
+        }
+        return () -> route;
+      }
+
+      // Publish changed waypoints to any SimEngine driving them
+      private void waypointsChanged () {
+        if (route != null) {
+          route = SimEngine.getRoute(wayStore);
+        }
+      }
+
+      LonLat getWaypointLoc (int idx) {
+        return new LonLat(wayStore.getLon(idx), wayStore.getLat(idx));
+      }
+
+      /**
+       * Get a copy of a waypoint.  Changes to the copy's settings are saved by updateWaypoint() and
+       * changes to its location by moveItem().
+       */
+      Waypoint getWaypoint (int idx) {
+        Waypoint way = new Waypoint(getWaypointLoc(idx), wayStore.getSel(idx));
+        way.heading = wayStore.getHeading(idx);
+        way.setFlags(wayStore.getFlags(idx));
+        way.index = idx;
+        return way;
+      }
+
+      void updateWaypoint (Waypoint way) {
+        wayStore.set(way.index, way.sel, way.heading, way.getFlags());
+        ByteBuffer buf = ByteBuffer.allocate(7 + MarkFile.sizeOf(way.sel));
+        buf.putInt(way.index).putShort((short) way.heading).put((byte) way.getFlags());
+        MarkFile.putString(buf, way.sel);
+        record(WAY_SET, buf);
+      }
+
+      private void invalidateIndex () {
+        index = null;
+        wayLine = null;
+        markerLine = null;
+      }
+
+      // Waypoint locations in list order (in world coordinates) for finding the waypoints and lines in view
+      private PolylineIndex getWayLine () {
+        if (wayLine == null) {
+          int count = wayStore.size();
+          double[] xs = wayStore.copyLon(), ys = wayStore.copyLat();
+          lonToWorldX(xs, 0, xs, 0, count);
+          latToWorldY(ys, 0, ys, 0, count);
+          wayLine = new PolylineIndex();
+          wayLine.addAll(xs, ys, count);
+        }
+        return wayLine;
+      }
+
+      /**
+       * Marker locations in list order (in world coordinates).  POLYCLOSE markers are given the location of
+       * the first Stanchion in their chain, so the closing segment is the segment which ends at them, and
+       * POLYEND markers are given the location of the marker before them.
+       */
+      private PolylineIndex getMarkerLine () {
+        if (markerLine == null) {
+          markerLine = new PolylineIndex();
+          int first = -1;
+          for (int ii = 0; ii < markers.size(); ii++) {
+            Marker mrk = markers.get(ii);
+            if (mrk.type == MarkerType.POLYCLOSE && first >= 0) {
+              markerLine.add(markerLine.getX(first), markerLine.getY(first));
+            } else if ((mrk.type == MarkerType.POLYCLOSE || mrk.type == MarkerType.POLYEND) && ii > 0) {
+              markerLine.add(markerLine.getX(ii - 1), markerLine.getY(ii - 1));
+            } else {
+              markerLine.add(mrk.getWorldX(), mrk.getWorldY());
+            }
+            if (mrk.type != MarkerType.POLY) {
+              first = -1;
+            } else if (first < 0) {
+              first = ii;
+            }
+          }
+        }
+        return markerLine;
+      }
+
+      /**
+       * Get spatial index of markers (in world coordinates).  Index is built on first use and then kept up
+       * to date by addMarker(), moveItem(), etc.  Note: waypoints are found using getWayLine()
+       */
+      private SpatialGrid<Drawable> getIndex () {
+        if (index == null) {
+          index = new SpatialGrid<>(indexCellSize);
+          maxDiameter = 0;
+          for (Marker mrk : markers) {
+            addToIndex(mrk);
+          }
+        }
+        return index;
+      }
+
+      private void addToIndex (Drawable item) {
+        if (item instanceof Marker && (((Marker) item).type == MarkerType.POLYCLOSE || ((Marker) item).type == MarkerType.POLYEND)) {
+          return;
+        }
+        index.add(item, item.getWorldX(), item.getWorldY());
+        maxDiameter = Math.max(maxDiameter, item.diameter);
+      }
+
+      /**
+       * Get the markers as obstacles for simulated cars (see SimEngine.setObstacles()).  Barrels, Ramps and
+       * Stanchions are obstacles their full size, a Hoop is a small post at each leg, and the lines joining
+       * Stanchions are boundaries.  Note: made from the markers as they are now, so an Obstacles can be kept
+       * for a run, and shared between threads.
+       */
+      private Obstacles getObstacles () {
+        Obstacles obstacles = new Obstacles();
+        PolylineIndex line = getMarkerLine();
+        double legRadius = 1 / 2.2463006662281613 / (1 << MaxZoom);     // 1 inch
+        for (int ii = 0; ii < markers.size(); ii++) {
+          Marker mrk = markers.get(ii);
+          double x = line.getX(ii), y = line.getY(ii), half = mrk.getWorldDiameter() / 2;
+          switch (mrk.type) {
+            case CIRCLE:
+              obstacles.addCircle(Obstacles.BARREL, ii, x, y, half);
+              break;
+            case RECT:
+              obstacles.addRamp(ii, x, y, half, mrk.rotation);
+              break;
+            case HOOP: {
+              double rad = Math.toRadians(mrk.rotation), dx = Math.cos(rad) * half, dy = Math.sin(rad) * half;
+              obstacles.addCircle(Obstacles.HOOP, ii, x - dx, y - dy, legRadius);
+              obstacles.addCircle(Obstacles.HOOP, ii, x + dx, y + dy, legRadius);
+            } break;
+            case POLY: {
+              obstacles.addCircle(Obstacles.STANCHION, ii, x, y, half);
+              // Note: a POLYCLOSE marker is indexed at the location of the first Stanchion in its chain
+              MarkerType next = ii + 1 < markers.size() ? markers.get(ii + 1).type : null;
+              boolean closes = next == MarkerType.POLYCLOSE && ii > 0 && markers.get(ii - 1).type == MarkerType.POLY;
+              if (next == MarkerType.POLY || closes) {
+                obstacles.addBoundary(ii, x, y, line.getX(ii + 1), line.getY(ii + 1));
+              }
+            } break;
+          }
+        }
+        return obstacles.build(indexCellSize);
+      }
+
+      // Largest diameter of any indexed marker (used to size hit test queries)
+      private int getMaxDiameter () {
+        getIndex();
+        return maxDiameter;
+      }
+
+      void addWaypoint (Waypoint way) {
+        wayStore.add(way.loc.lat, way.loc.lon, way.sel, way.heading, way.getFlags());
+        way.index = wayStore.size() - 1;
+        if (wayLine != null) {
+          wayLine.add(way.getWorldX(), way.getWorldY());
+        }
+        waypointsChanged();
+        ByteBuffer buf = ByteBuffer.allocate(19 + MarkFile.sizeOf(way.sel));
+        buf.putDouble(way.loc.lat).putDouble(way.loc.lon).putShort((short) way.heading).put((byte) way.getFlags());
+        MarkFile.putString(buf, way.sel);
+        record(WAY_ADD, buf);
+      }
+
+      void insertWaypoint (int idx, Waypoint way) {
+        wayStore.insert(idx, way.loc.lat, way.loc.lon, way.sel, way.heading, way.getFlags());
+        way.index = idx;
+        wayLine = null;
+        waypointsChanged();
+        ByteBuffer buf = ByteBuffer.allocate(23 + MarkFile.sizeOf(way.sel));
+        buf.putInt(idx).putDouble(way.loc.lat).putDouble(way.loc.lon).putShort((short) way.heading).put((byte) way.getFlags());
+        MarkFile.putString(buf, way.sel);
+        record(WAY_INSERT, buf);
+      }
+
+      void removeWaypoint (Waypoint way) {
+        wayStore.remove(way.index);
+        record(WAY_REMOVE, ByteBuffer.allocate(4).putInt(way.index));
+        way.index = -1;
+        wayLine = null;
+        waypointsChanged();
+      }
+
+      void addMarker (Marker mrk) {
+        markers.add(mrk);
+        if (index != null) {
+          addToIndex(mrk);
+        }
+        markerLine = null;
+        ByteBuffer buf = ByteBuffer.allocate(getMarkerSize(mrk));
+        putMarker(buf, mrk);
+        record(MARKER_ADD, buf);
+      }
+
+      void insertMarker (int idx, Marker mrk) {
+        markers.add(idx, mrk);
+        if (index != null) {
+          addToIndex(mrk);
+        }
+        markerLine = null;
+        ByteBuffer buf = ByteBuffer.allocate(4 + getMarkerSize(mrk));
+        putMarker(buf.putInt(idx), mrk);
+        record(MARKER_INSERT, buf);
+      }
+
+      void removeMarker (Marker mrk) {
+        int idx = markers.indexOf(mrk);
+        markers.remove(idx);
+        if (index != null) {
+          index.remove(mrk);
+        }
+        markerLine = null;
+        record(MARKER_REMOVE, ByteBuffer.allocate(4).putInt(idx));
+      }
+
+      void setGpsReference (GPSReference gpsReference) {
+        this.gpsReference = gpsReference;
+        recordReference();
+      }
+
+      void setSimCar (SimCar simCar) {
+        this.simCar = simCar;
+        recordCar();
+      }
+
+      void moveItem (Drawable item, LonLat loc) {
+        item.loc = loc;
+        if (item instanceof Waypoint) {
+          int idx = ((Waypoint) item).index;
+          wayStore.setLoc(idx, loc.lat, loc.lon);
+          if (wayLine != null) {
+            wayLine.set(idx, item.getWorldX(), item.getWorldY());
+          }
+          waypointsChanged();
+          record(WAY_MOVE, ByteBuffer.allocate(20).putInt(idx).putDouble(loc.lat).putDouble(loc.lon));
+          return;
+        }
+        if (index != null) {
+          index.move(item, item.getWorldX(), item.getWorldY());
+        }
+        if (item instanceof Marker) {
+          // Note: moving a Stanchion can also move the end of its chain's closing segment
+          markerLine = null;
+        }
+        itemChanged(item);
+      }
+
+      static File getFile (String name) {
+        return new File(userDir + "/" + name + ".mrk");
+      }
+
+      /**
+       * Load the MarkSet for a map from a mark file, or from a legacy (serialized MarkSet) .mrk file
+       * @return MarkSet, or a new, empty MarkSet if map has no .mrk file
+       * @throws IOException if .mrk file could not be read
+       */
+      static MarkSet load (String name) throws IOException {
+        File file = getFile(name);
+        if (!file.exists()) {
           return new MarkSet(name);
         }
+        if (!MarkFile.isMarkFile(file)) {
+          try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+            return (MarkSet) in.readObject();
+          } catch (ClassNotFoundException | ClassCastException ex) {
+            throw new IOException("Invalid legacy mark file: " + file, ex);
+          }
+        }
+        MarkFile mrkFile = MarkFile.read(file);
+        try {
+          return new MarkSet(name, mrkFile);
+        } catch (RuntimeException ex) {
+          throw new IOException("Invalid mark file: " + file, ex);
+        }
+      }
+
+      /**
+       * Save as a mark file (legacy .mrk files are replaced the first time they are saved) and start a new
+       * edit journal.  Note: waits for the file to be written
+       */
+      void save () throws IOException {
+        generation++;
+        MarkFile mrkFile = getSnapshot();
+        if (journal != null) {
+          journal.compact(generation, () -> mrkFile.write(getFile(name)));
+          journal.flush();
+        } else {
+          mrkFile.write(getFile(name));
+        }
+      }
+
+      // Save a snapshot and start a new journal in the background
+      private void compact () {
+        if (journal != null) {
+          generation++;
+          MarkFile mrkFile = getSnapshot();
+          journal.compact(generation, () -> mrkFile.write(getFile(name)));
+        }
+      }
+
+      private MarkFile getSnapshot () {
+        MarkFile mrkFile = new MarkFile();
+        MarkFile.putString(mrkFile.addSection(MarkFile.NAME, MarkFile.sizeOf(name)), name);
+        mrkFile.addSection(MarkFile.JOURNAL, 8).putLong(generation);
+        int size = 4;
+        for (Marker mrk : markers) {
+          size += getMarkerSize(mrk);
+        }
+        ByteBuffer buf = mrkFile.addSection(MarkFile.MARKERS, size);
+        buf.putInt(markers.size());
+        for (Marker mrk : markers) {
+          putMarker(buf, mrk);
+        }
+        wayStore.write(mrkFile.addSection(MarkFile.WAYPOINTS, wayStore.getEncodedSize()));
+        if (gpsReference != null) {
+          putReference(mrkFile.addSection(MarkFile.REFERENCE, 32), gpsReference);
+        }
+        if (simCar != null) {
+          putCar(mrkFile.addSection(MarkFile.CAR, 100), simCar);
+        }
+        return mrkFile;
       }
 
-      void save () {
-        String fName = userDir + "/" + name + ".mrk";
+      // Read the sections written by save()
+      private MarkSet (String name, MarkFile mrkFile) throws IOException {
+        ByteBuffer buf = mrkFile.getSection(MarkFile.NAME);
+        this.name = buf != null ? MarkFile.getString(buf) : name;
+        buf = mrkFile.getSection(MarkFile.JOURNAL);
+        generation = buf != null ? buf.getLong() : 0;
+        markers = new ArrayList<>();
+        buf = mrkFile.getSection(MarkFile.MARKERS);
+        if (buf != null) {
+          int count = buf.getInt();
+          for (int ii = 0; ii < count; ii++) {
+            markers.add(getMarker(buf));
+          }
+        }
+        buf = mrkFile.getSection(MarkFile.WAYPOINTS);
+        wayStore = buf != null ? WaypointStore.read(buf) : new WaypointStore();
+        buf = mrkFile.getSection(MarkFile.REFERENCE);
+        if (buf != null) {
+          gpsReference = getReference(buf);
+        }
+        buf = mrkFile.getSection(MarkFile.CAR);
+        if (buf != null) {
+          simCar = getCar(buf);
+        }
+      }
+
+      private static int getMarkerSize (Marker mrk) {
+        return MarkFile.sizeOf(mrk.type.name()) + 33;
+      }
+
+      private static void putMarker (ByteBuffer buf, Marker mrk) {
+        MarkFile.putString(buf, mrk.type.name());
+        buf.putDouble(mrk.loc.lat).putDouble(mrk.loc.lon).putInt(mrk.diameter);
+        buf.putInt(mrk.color != null ? mrk.color.getRGB() : 0).putInt(mrk.rotation).put((byte) (mrk.hasRotation ? 1 : 0));
+      }
+
+      private static Marker getMarker (ByteBuffer buf) {
+        MarkerType type = MarkerType.valueOf(MarkFile.getString(buf));
+        double lat = buf.getDouble(), lon = buf.getDouble();
+        LonLat loc = new LonLat(lon, lat);
+        int diameter = buf.getInt();
+        Color color = new Color(buf.getInt(), true);
+        int rotation = buf.getInt();
+        boolean hasRotation = buf.get() != 0;
+        if (type == MarkerType.POLYCLOSE || type == MarkerType.POLYEND) {
+          return new Marker(type == MarkerType.POLYCLOSE);
+        } else if (hasRotation) {
+          return new Marker(type, loc, diameter, color, rotation);
+        }
+        return new Marker(type, loc, diameter, color);
+      }
+
+      private static void putReference (ByteBuffer buf, GPSReference ref) {
+        buf.putDouble(ref.loc.lat).putDouble(ref.loc.lon).putDouble(ref.refLat).putDouble(ref.refLon);
+      }
+
+      private static GPSReference getReference (ByteBuffer buf) {
+        double lat = buf.getDouble(), lon = buf.getDouble();
+        GPSReference ref = new GPSReference(new LonLat(lon, lat));
+        ref.setLoc(buf.getDouble(), buf.getDouble());
+        return ref;
+      }
+
+      private static void putCar (ByteBuffer buf, SimCar car) {
+        buf.putDouble(car.loc.lat).putDouble(car.loc.lon).putDouble(car.saveLoc.lat).putDouble(car.saveLoc.lon);
+        buf.putDouble(car.angle).putDouble(car.saveAngle).putDouble(car.scale).putDouble(car.maxSteer);
+        buf.putDouble(car.maxSpeed).putDouble(car.accel).putDouble(car.decel).putDouble(car.speed);
+        buf.putInt(car.wayIdx);
+      }
+
+      private static SimCar getCar (ByteBuffer buf) {
+        double lat = buf.getDouble(), lon = buf.getDouble();
+        SimCar car = new SimCar(new LonLat(lon, lat));
+        lat = buf.getDouble();
+        lon = buf.getDouble();
+        car.saveLoc = new LonLat(lon, lat);
+        car.angle = buf.getDouble();
+        car.saveAngle = buf.getDouble();
+        car.scale = buf.getDouble();
+        car.maxSteer = buf.getDouble();
+        car.maxSpeed = buf.getDouble();
+        car.accel = buf.getDouble();
+        car.decel = buf.getDouble();
+        car.speed = buf.getDouble();
+        car.wayIdx = buf.getInt();
+        return car;
+      }
+
+      static File getJournalFile (String name) {
+        return new File(userDir + "/" + name + ".mrj");
+      }
+
+      /**
+       * Replay any edits left in the journal (if the app was not shut down cleanly) and start a new journal.
+       * Edits are then recorded in the journal as they are made.
+       * @throws IOException if journal could not be replayed (edits replayed before the error are kept)
+       */
+      void openJournal () throws IOException {
+        File file = getJournalFile(name);
+        IOException error = null;
+        int count = 0;
         try {
-          File file = new File(fName);
-          FileOutputStream fileOut = new FileOutputStream(file);
-          ObjectOutputStream out = new ObjectOutputStream(fileOut);
-          out.writeObject(this);
-          out.close();
-          fileOut.close();
+          count = EditJournal.replay(file, generation, this::replay);
         } catch (IOException ex) {
-          System.out.println("Unable to save MarkSet: " + fName);
+          error = ex;
+        }
+        invalidateIndex();
+        waypointsChanged();
+        if (count > 0 || error != null) {
+          save();
+        }
+        journal = new EditJournal(file, generation);
+        if (error != null) {
+          throw error;
+        }
+      }
+
+      void closeJournal () throws IOException {
+        if (journal != null) {
+          journal.close();
+          journal = null;
+        }
+      }
+
+      private void record (int op, ByteBuffer data) {
+        if (journal != null) {
+          journal.append(op, data);
+          if (journal.getCount() >= compactCount) {
+            compact();
+          }
         }
       }
 
-      void resetMarkers () {
+      // Record the current state of a marker, GPS reference, or car after it has been moved, or rotated
+      void itemChanged (Drawable item) {
+        if (item instanceof GPSReference) {
+          recordReference();
+        } else if (item instanceof Marker) {
+          Marker mrk = (Marker) item;
+          ByteBuffer buf = ByteBuffer.allocate(4 + getMarkerSize(mrk));
+          putMarker(buf.putInt(markers.indexOf(mrk)), mrk);
+          record(MARKER_SET, buf);
+        } else if (item instanceof SimCar) {
+          recordCar();
+        }
+      }
+
+      private void recordReference () {
+        ByteBuffer buf = ByteBuffer.allocate(33);
+        if (gpsReference != null) {
+          putReference(buf.put((byte) 1), gpsReference);
+        } else {
+          buf.put((byte) 0);
+        }
+        record(REFERENCE, buf);
+      }
+
+      private void recordCar () {
+        ByteBuffer buf = ByteBuffer.allocate(101);
+        if (simCar != null) {
+          putCar(buf.put((byte) 1), simCar);
+        } else {
+          buf.put((byte) 0);
+        }
+        record(CAR, buf);
+      }
+
+      // Apply a record from the journal
+      private void replay (int op, ByteBuffer buf) {
+        switch (op) {
+          case WAY_ADD:
+            double lat = buf.getDouble(), lon = buf.getDouble();
+            int idx, heading = buf.getShort(), flags = buf.get();
+            wayStore.add(lat, lon, MarkFile.getString(buf), heading, flags);
+            break;
+          case WAY_INSERT:
+            idx = buf.getInt();
+            lat = buf.getDouble();
+            lon = buf.getDouble();
+            heading = buf.getShort();
+            flags = buf.get();
+            wayStore.insert(idx, lat, lon, MarkFile.getString(buf), heading, flags);
+            break;
+          case WAY_SET:
+            idx = buf.getInt();
+            heading = buf.getShort();
+            flags = buf.get();
+            wayStore.set(idx, MarkFile.getString(buf), heading, flags);
+            break;
+          case WAY_MOVE:
+            idx = buf.getInt();
+            lat = buf.getDouble();
+            lon = buf.getDouble();
+            wayStore.setLoc(idx, lat, lon);
+            break;
+          case WAY_REMOVE:
+            wayStore.remove(buf.getInt());
+            break;
+          case WAY_CLEAR:
+            wayStore.clear();
+            break;
+          case MARKER_ADD:
+            markers.add(getMarker(buf));
+            break;
+          case MARKER_INSERT:
+            idx = buf.getInt();
+            markers.add(idx, getMarker(buf));
+            break;
+          case MARKER_SET:
+            idx = buf.getInt();
+            markers.set(idx, getMarker(buf));
+            break;
+          case MARKER_REMOVE:
+            markers.remove(buf.getInt());
+            break;
+          case REFERENCE:
+            gpsReference = buf.get() != 0 ? getReference(buf) : null;
+            break;
+          case CAR:
+            simCar = buf.get() != 0 ? getCar(buf) : null;
+            break;
+        }
+      }
+
+      // Note: returns the old markers, so the change can be undone
+      List<Marker> resetMarkers () {
         // Set markers to position values published by Sparkfun for AVC 2013
+        List<Marker> old = markers;
         markers = new ArrayList<>();
+        invalidateIndex();
         /*
         markers.add(new Marker(MarkerType.CIRCLE, 40.0710390, -105.2299660, 23, Color.RED));      // Barrel 1
         markers.add(new Marker(MarkerType.CIRCLE, 40.0709820, -105.2299570, 23, Color.RED));      // Barrel 2
@@ -434,100 +1303,116 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
         markers.add(new Marker(MarkerType.RECT,   40.0710810, -105.2291989, 45, Color.BLUE, 60)); // Ramp
         markers.add(new Marker(MarkerType.CIRCLE, 40.0713749, -105.2297889, 30, Color.WHITE));    // Start
         */
+        compact();
+        return old;
       }
 
-      void loadMarkers (String data) {
-        markers = new ArrayList<>();
-        StringTokenizer tok = new StringTokenizer(data, "\n\r");
-        while (tok.hasMoreTokens()) {
-          String line = tok.nextToken();
-          String[] items = line.split(",");
-          if (items.length == 1) {
-            markers.add(new Marker(true));
-          } else if (items.length >= 5) {
-            MarkerType type = MarkerType.valueOf(items[0].trim());
-            double lat = Double.valueOf(items[1].trim());
-            double lon = Double.valueOf(items[2].trim());
-            int radius = Integer.valueOf(items[3].trim());
-            Color color = colors.get(items[4].trim().toLowerCase());
+      /**
+       * Read markers from a CSV file.  Current markers are only replaced if the whole file can be read.
+       * @return old markers, so the change can be undone
+       */
+      List<Marker> loadMarkers (CsvReader in) throws IOException {
+        List<Marker> list = new ArrayList<>();
+        while (in.next()) {
+          int fields = in.getFieldCount();
+          if (fields == 1) {
+            list.add(new Marker(true));
+          } else if (fields == 5 || fields == 6) {
+            MarkerType type;
+            try {
+              type = MarkerType.valueOf(in.getString(0));
+            } catch (IllegalArgumentException ex) {
+              throw in.error("Unknown marker type \"" + in.getString(0) + "\"");
+            }
+            double lat = in.getDouble(1);
+            double lon = in.getDouble(2);
+            int radius = in.getInt(3);
+            Color color = colors.get(in.getString(4).toLowerCase());
             color = color != null ? color : Color.ORANGE;
-            if (items.length == 6) {
-              markers.add(new Marker(type, new LonLat(lon, lat), radius, color, Integer.valueOf(items[5].trim())));
+            if (fields == 6) {
+              list.add(new Marker(type, new LonLat(lon, lat), radius, color, in.getInt(5)));
             } else {
-              markers.add(new Marker(type, new LonLat(lon, lat), radius, color));
+              list.add(new Marker(type, new LonLat(lon, lat), radius, color));
             }
+          } else {
+            throw in.error("Expected 1, 5 or 6 fields, found " + fields);
           }
         }
+        List<Marker> old = markers;
+        markers = list;
+        invalidateIndex();
+        compact();
+        return old;
       }
 
-      void saveMarkers (File save) {
-        try {
-          FileOutputStream fOut = new FileOutputStream(save);
-          PrintWriter pOut = new PrintWriter(fOut);
-          for (Marker mrk : markers) {
-            pOut.print(mrk.type.toString());
-            if (mrk.type != MarkerType.POLYCLOSE) {
-              pOut.print(",");
-              pOut.print(mrk.loc.lat);
-              pOut.print(",");
-              pOut.print(mrk.loc.lon);
-              pOut.print(",");
-              pOut.print(mrk.diameter);
-              pOut.print(",");
-              pOut.print(rColor.get(mrk.color));
-              if (mrk.hasRotation) {
-                pOut.print(",");
-                pOut.print(mrk.rotation);
-              }
+      void saveMarkers (CsvWriter out) throws IOException {
+        for (Marker mrk : markers) {
+          out.field(mrk.type.toString());
+          if (mrk.type != MarkerType.POLYCLOSE) {
+            out.field(mrk.loc.lat).field(mrk.loc.lon).field(mrk.diameter).field(rColor.get(mrk.color));
+            if (mrk.hasRotation) {
+              out.field(mrk.rotation);
             }
-            pOut.println();
           }
-          pOut.close();
-          fOut.close();
-        } catch (IOException ex) {
-          ex.printStackTrace(System.out);
+          out.endLine();
+        }
+      }
+
+      void saveWaypoints (CsvWriter out, Settings settings) throws IOException {
+        for (int ii = 0; ii < wayStore.size(); ii++) {
+          out.field(wayStore.getLat(ii), 7).field(wayStore.getLon(ii), 7).field(getCommand(ii, settings)).endLine();
         }
       }
 
       private String getCsvCoords (Settings settings) {
-        StringBuilder buf = new StringBuilder();
-        for (Waypoint way : waypoints) {
-          buf.append(lonLatFmt.format(way.loc.lat));
-          buf.append(",");
-          buf.append(lonLatFmt.format(way.loc.lon));
-          buf.append(",");
-          //buf.append(settings.getCode(way.sel));
-          int tmp = settings.getCode(way.sel) & 0x0F;
-          tmp |= (way.heading & 0x1FF) << 4;
-          tmp |= way.avoidBarrels ? 0x8000 : 0;
-          tmp |= way.jumpRamp ? 0x4000 : 0;
-          tmp |= way.raiseFlag ? 0x2000 : 0;
-          buf.append(tmp);
-          buf.append("\n");
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (CsvWriter out = new CsvWriter(Channels.newChannel(bout))) {
+          saveWaypoints(out, settings);
+        } catch (IOException ex) {
+          ex.printStackTrace(System.out);
         }
-        return buf.toString();
+        return new String(bout.toByteArray(), StandardCharsets.UTF_8);
       }
 
-      private void loadWaypoints (String vals, Settings settings) {
-        waypoints = new ArrayList<>();
-        StringTokenizer toks = new StringTokenizer(vals, "\n\r");
-        while (toks.hasMoreTokens()) {
-          String line = toks.nextToken();
-          String[] items = line.split(",");
-          double lat = Double.parseDouble(items[0]);
-          double lon = Double.parseDouble(items[1]);
-          int cmd = Integer.parseInt(items[2]);
+      // Waypoint's speed setting, heading and options packed as sent to the car
+      private int getCommand (int idx, Settings settings) {
+        int flags = wayStore.getFlags(idx);
+        int tmp = settings.getCode(wayStore.getSel(idx)) & 0x0F;
+        tmp |= (wayStore.getHeading(idx) & 0x1FF) << 4;
+        tmp |= (flags & WaypointStore.AVOID_BARRELS) != 0 ? 0x8000 : 0;
+        tmp |= (flags & WaypointStore.JUMP_RAMP) != 0 ? 0x4000 : 0;
+        tmp |= (flags & WaypointStore.RAISE_FLAG) != 0 ? 0x2000 : 0;
+        return tmp;
+      }
+
+      /**
+       * Read waypoints from a CSV file.  Current waypoints are only replaced if the whole file can be read.
+       * @return old waypoints, so the change can be undone
+       */
+      private WaypointStore loadWaypoints (CsvReader in, Settings settings) throws IOException {
+        WaypointStore store = readWaypoints(in, settings);
+        WaypointStore old = wayStore;
+        setWaypoints(store);
+        return old;
+      }
+
+      private static WaypointStore readWaypoints (CsvReader in, Settings settings) throws IOException {
+        WaypointStore store = new WaypointStore();
+        while (in.next()) {
+          double lat = in.getDouble(0);
+          double lon = in.getDouble(1);
+          int cmd = in.getInt(2);
           String code = settings.getDesc(cmd & 0x0F);
-          Waypoint newWay = new Waypoint(new LonLat(lon, lat), code);
+          int flags = 0;
           if ((cmd & 0x8000) != 0)
-            newWay.avoidBarrels = true;
+            flags |= WaypointStore.AVOID_BARRELS;
           if ((cmd & 0x4000) != 0)
-            newWay.jumpRamp = true;
+            flags |= WaypointStore.JUMP_RAMP;
           if ((cmd & 0x2000) != 0)
-            newWay.raiseFlag = true;
-          newWay.heading = (cmd >> 4) & 0x1FF;
-          waypoints.add(newWay);
+            flags |= WaypointStore.RAISE_FLAG;
+          store.add(lat, lon, code, (cmd >> 4) & 0x1FF, flags);
         }
+        return store;
       }
     }
 
@@ -561,57 +1446,75 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
 
       void doRotate (GPSTileMap.GPSMap gpsMap, int x, int y) {
         if (hasRotation) {
-          Point mLoc = gpsMap.getMapLoc(loc);
+          Point mLoc = getMapLoc(gpsMap);
           rotation = (int) Math.toDegrees(Math.toRadians(180) - Math.atan2(x - mLoc.x, y - mLoc.y)) % 360;
         }
       }
 
-      Object[] doDraw (GPSTileMap.GPSMap gpsMap, Graphics2D g2, Object[] ret) {
-        // Note: convert diameter from inches to pixels using factor of 2.2463006662281613 inches/pixel at zoom == 21
-        int dia = (int) ((double) diameter / 2.2463006662281613) / (22 - gpsMap.zoom);
+      // Note: convert diameter from inches to pixels using factor of 2.2463006662281613 inches/pixel at zoom == 21
+      private int getDia (GPSTileMap.GPSMap gpsMap) {
+        return (int) ((double) diameter / 2.2463006662281613 / gpsMap.getIconDivisor());
+      }
+
+      // Diameter in World Units
+      private double getWorldDiameter () {
+        return diameter / 2.2463006662281613 / (1 << MaxZoom);
+      }
+
+      Rectangle getBounds (GPSTileMap.GPSMap gpsMap) {
+        int dia;
+        switch (type) {
+          case POLYCLOSE:
+          case POLYEND:
+            return null;
+          case GPSREF:
+            dia = 20;
+            break;
+          case RECT:
+          case HOOP:
+            // Allow for any rotation
+            dia = getDia(gpsMap) * 3 / 2;
+            break;
+          default:
+            dia = getDia(gpsMap);
+            break;
+        }
+        Point mLoc = getMapLoc(gpsMap);
+        dia += 4;
+        return new Rectangle(mLoc.x - dia / 2, mLoc.y - dia / 2, dia, dia);
+      }
+
+      // Note: lines which join Stanchions are drawn by GPSMap
+      void doDraw (GPSTileMap.GPSMap gpsMap, Graphics2D g2) {
+        int dia = getDia(gpsMap);
         g2.setColor(color);
-        Point mLoc = gpsMap.getMapLoc(loc);
-        g2.setStroke(new BasicStroke(1.0f));
+        Point mLoc = getMapLoc(gpsMap);
+        g2.setStroke(thin);
         switch (type) {
           case CIRCLE: {
               g2.fillOval(mLoc.x - dia / 2, mLoc.y - dia / 2, dia, dia);
             }
             break;
           case RECT: {
-              Graphics2D g2d = (Graphics2D)g2.create();
-              g2d.rotate(Math.toRadians(rotation), mLoc.x, mLoc.y);
-              g2d.fillRect(mLoc.x - dia / 2, mLoc.y - dia / 2, dia, dia);
+              AffineTransform save = g2.getTransform();
+              g2.rotate(Math.toRadians(rotation), mLoc.x, mLoc.y);
+              g2.fillRect(mLoc.x - dia / 2, mLoc.y - dia / 2, dia, dia);
+              g2.setTransform(save);
             }
             break;
           case HOOP: {
-              Graphics2D g2d = (Graphics2D)g2.create();
-              g2d.rotate(Math.toRadians(rotation), mLoc.x, mLoc.y);
-              g2d.fillRect(mLoc.x - dia / 2, mLoc.y - 1, dia, 3);
+              AffineTransform save = g2.getTransform();
+              g2.rotate(Math.toRadians(rotation), mLoc.x, mLoc.y);
+              g2.fillRect(mLoc.x - dia / 2, mLoc.y - 1, dia, 3);
+              g2.setTransform(save);
             }
             break;
           case POLY: {
             g2.fillOval(mLoc.x - dia / 2, mLoc.y - dia / 2, dia, dia);
-            if (ret != null && ret.length == 2) {
-              Point lp = (Point) ret[1];
-              g2.drawLine(lp.x, lp.y, mLoc.x, mLoc.y);
-              return new Object[] {color, lp, new Point(mLoc.x, mLoc.y)};
-            } else if (ret != null && ret.length == 3) {
-              Point fp = (Point) ret[1];
-              Point lp = (Point) ret[2];
-              g2.drawLine(lp.x, lp.y, mLoc.x, mLoc.y);
-              return new Object[] {color, fp, new Point(mLoc.x, mLoc.y)};
-            }
-            return new Object[] {color, new Point(mLoc.x, mLoc.y)};
-            }
-          case POLYCLOSE: {
-            // Note: ends definition of Stanchion chain and draws closing segment
-            if (ret != null && ret.length == 3) {
-              g2.setColor((Color) ret[0]);
-              Point lp1 = (Point) ret[1];
-              Point lp2 = (Point) ret[2];
-              g2.drawLine(lp1.x, lp1.y, lp2.x, lp2.y);
-            }
             } break;
+          case POLYCLOSE:
+            // Ends definition of Stanchion chain with closing segment
+            break;
           case POLYEND:
             // Marks end of Stanchion chain without closing segment
             break;
@@ -623,39 +1526,98 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
             g2.drawLine(mLoc.x, mLoc.y + hDia, mLoc.x, mLoc.y + hDia / 2);
             g2.drawLine(mLoc.x - hDia, mLoc.y, mLoc.x - hDia / 2, mLoc.y);
             g2.drawLine(mLoc.x + hDia, mLoc.y, mLoc.x + hDia / 2, mLoc.y);
-            g2.setStroke(thick[21 - gpsMap.zoom]);
+            g2.setStroke(gpsMap.thickStroke);
             g2.drawOval(mLoc.x - hDia, mLoc.y - hDia, dia, dia);
           } break;
         }
-        return new Object[0];
       }
     }
 
     abstract static class Drawable implements Serializable {
       private static final long serialVersionUID = 7586575480447322227L;
-      static Stroke[] thick = {new BasicStroke(3.0f), new BasicStroke(2.0f), new BasicStroke(1.0f)};
+      static final Stroke thin = new BasicStroke(1.0f);
       LonLat          loc;
       int             diameter;
+      private transient LonLat  projLoc;            // loc that worldX, worldY were projected from
+      private transient double  worldX, worldY;
+      private transient int     mapStamp;           // GPSMap.viewStamp when mapLoc was computed
+      private transient Point   mapLoc;
 
       Drawable (LonLat loc, int diameter) {
         this.loc = loc;
         this.diameter = diameter;
       }
 
+      // Note: loc is replaced, never modified, when an item moves, so projection is redone only when it changes
+      private void project () {
+        if (projLoc != loc) {
+          LonLat cur = loc;
+          worldX = lonToWorldX(cur.lon);
+          worldY = latToWorldY(cur.lat);
+          projLoc = cur;
+          mapLoc = null;
+        }
+      }
+
+      double getWorldX () {
+        project();
+        return worldX;
+      }
+
+      double getWorldY () {
+        project();
+        return worldY;
+      }
+
+      /**
+       * Get location in the window.  Location is only recomputed when loc, or the view, has changed.
+       * Note: returned Point is reused, so callers must not keep, or modify it.
+       */
+      Point getMapLoc (GPSTileMap.GPSMap gpsMap) {
+        project();
+        if (mapLoc == null || mapStamp != gpsMap.viewStamp) {
+          mapLoc = new Point(gpsMap.toMapX(worldX), gpsMap.toMapY(worldY));
+          mapStamp = gpsMap.viewStamp;
+        }
+        return mapLoc;
+      }
+
       boolean selects (GPSTileMap.GPSMap gpsMap, int x, int y) {
-        Point mLoc = gpsMap.getMapLoc(loc);
-        return (int) Math.sqrt(Math.pow((double) mLoc.x - x, 2) + Math.pow((double) mLoc.y - y, 2)) < diameter / (22 - gpsMap.zoom);
+        Point mLoc = getMapLoc(gpsMap);
+        double dx = mLoc.x - x, dy = mLoc.y - y;
+        // Note: same as comparing the distance truncated to int with the radius
+        double radius = Math.ceil(diameter / gpsMap.getIconDivisor());
+        return dx * dx + dy * dy < radius * radius;
+      }
+
+      /**
+       * Get area of the window covered by this item's icon
+       * @return bounds (in unrotated window coordinates), or null if item draws nothing by itself
+       */
+      Rectangle getBounds (GPSTileMap.GPSMap gpsMap) {
+        Point mLoc = getMapLoc(gpsMap);
+        // Note: allow for thick stroke
+        int dia = (int) (diameter / gpsMap.getIconDivisor()) + 4;
+        return new Rectangle(mLoc.x - dia / 2, mLoc.y - dia / 2, dia, dia);
       }
     }
 
     static class SimCar extends Drawable implements Serializable {
       private static final long serialVersionUID = 7686215450217322227L;
+      static final double   length = 0.0000057419;          // Length of car (in World Units)
+      static final double   defaultRadius = 0.0000305325;   // Default ciRadius and wayRadius (in World Units)
       private CarShape  carShape = new CarShape();
       private LonLat    saveLoc;
       private double    scale = 1.0, angle, saveAngle;
       private double    maxSteer = 30, maxSpeed;
       private double    speed, accel, decel;
       private int       wayIdx = 1;
+      private transient double  ciRadius = defaultRadius;   // Radius of intersect circle around car's pivot point
+      private transient double  wayRadius = defaultRadius;  // Radius of waypoint trip point
+      private transient double  gpsErrX, gpsErrY;           // Error in the location the car steers by
+      private transient double  posX, posY;                 // Location in World Units while driving
+      private transient LonLat  posLoc;                     // loc that posX, posY were projected from
+      private transient boolean posAhead;                   // True if car has moved since loc was set
 
       private class CarShape extends Polygon {
         private CarShape () {
@@ -687,157 +1649,272 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       SimCar (LonLat loc) {
         super(loc, 30);
         saveLoc = loc.copy();
-        decel = accel = 0.0000057419 / 150;
-        maxSpeed = 0.0000057419 / 4;
+        decel = accel = length / 150;
+        maxSpeed = length / 4;
+      }
+
+      private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        ciRadius = wayRadius = defaultRadius;
       }
 
       void reset () {
+        posAhead = false;
         loc = saveLoc.copy();
         angle = saveAngle;
         speed = 0;
         wayIdx = 1;
       }
 
-      void doDraw (GPSTileMap.GPSMap gpsMap, Graphics2D g2) {
-        Point mLoc = gpsMap.getMapLoc(loc);
-        // Rotate car shape to reflect steering angle and draw
+      // Copy of the car (with its current state) for a SimEngine to drive
+      SimCar copy () {
+        SimCar car = new SimCar(getLoc());
+        car.saveLoc = saveLoc;
+        car.scale = scale;
+        car.angle = angle;
+        car.saveAngle = saveAngle;
+        car.maxSteer = maxSteer;
+        car.maxSpeed = maxSpeed;
+        car.speed = speed;
+        car.accel = accel;
+        car.decel = decel;
+        car.wayIdx = wayIdx;
+        car.ciRadius = ciRadius;
+        car.wayRadius = wayRadius;
+        return car;
+      }
+
+      /**
+       * Set the driving parameters (used to tune them by simulation, see SimSweep)
+       * @param maxSteer maximum steering angle (in degrees)
+       * @param ciRadius radius of intersect circle around car's pivot point (in World Units)
+       * @param wayRadius distance from a waypoint at which the car turns to the next one (in World Units)
+       * @param accel acceleration (in World Units per tick per tick)
+       * @param maxSpeed maximum speed (in World Units per tick)
+       */
+      void setParams (double maxSteer, double ciRadius, double wayRadius, double accel, double maxSpeed) {
+        this.maxSteer = maxSteer;
+        this.ciRadius = ciRadius;
+        this.wayRadius = wayRadius;
+        this.accel = accel;
+        this.maxSpeed = maxSpeed;
+      }
+
+      double getMaxSteer () {
+        return maxSteer;
+      }
+
+      double getCiRadius () {
+        return ciRadius;
+      }
+
+      double getWayRadius () {
+        return wayRadius;
+      }
+
+      double getAccel () {
+        return accel;
+      }
+
+      double getMaxSpeed () {
+        return maxSpeed;
+      }
+
+      /**
+       * Set the error (in World Units) in the GPS location the car steers by
+       */
+      void setGpsError (double errX, double errY) {
+        gpsErrX = errX;
+        gpsErrY = errY;
+      }
+
+      // Show the car as it was in a SimEngine sample
+      void setState (SimEngine.Sample sample) {
+        posAhead = false;
+        loc = sample.loc;
+        angle = sample.angle;
+        speed = sample.speed;
+        wayIdx = sample.wayIdx;
+      }
+
+      double getAngle () {
+        return angle;
+      }
+
+      double getSpeed () {
+        return speed;
+      }
+
+      int getWayIdx () {
+        return wayIdx;
+      }
+
+      void setWayIdx (int wayIdx) {
+        this.wayIdx = wayIdx;
+      }
+
+      // Stop the car where it is (without braking)
+      void stop () {
+        speed = 0;
+      }
+
+      int getFootprintSize () {
+        return carShape.npoints;
+      }
+
+      /**
+       * Get the outline of the car (its shape, as drawn) in World Units, for testing it against obstacles
+       * @param xs, ys arrays of getFootprintSize() points to fill
+       */
+      void getFootprint (double[] xs, double[] ys) {
+        syncPos();
+        double rad = Math.toRadians(angle + 180.0), dScale = scale / (1 << MaxZoom);
+        double cos = Math.cos(rad) * dScale, sin = Math.sin(rad) * dScale;
+        for (int ii = 0; ii < carShape.npoints; ii++) {
+          int sx = carShape.xpoints[ii], sy = carShape.ypoints[ii];
+          xs[ii] = posX + sx * cos - sy * sin;
+          ys[ii] = posY + sx * sin + sy * cos;
+        }
+      }
+
+      // Rotate car shape to reflect steering angle and scale it to zoom level
+      private AffineTransform getTransform (GPSTileMap.GPSMap gpsMap) {
+        Point mLoc = getMapLoc(gpsMap);
         AffineTransform at = AffineTransform.getTranslateInstance(mLoc.x, mLoc.y);
         at.rotate(Math.toRadians((angle + 180.0) % 360.0));
-        int div = 1 << (2 - (gpsMap.zoom - BaseZoom));
-        double dScale = scale / div;
+        double dScale = scale * Math.pow(2, gpsMap.zoom - MaxZoom);
         at.scale(dScale, dScale);
-        g2.setStroke(new BasicStroke(2.0f / div));
+        return at;
+      }
+
+      Rectangle getBounds (GPSTileMap.GPSMap gpsMap) {
+        Rectangle bounds = getTransform(gpsMap).createTransformedShape(carShape).getBounds();
+        bounds.grow(3, 3);
+        return bounds;
+      }
+
+      void doDraw (GPSTileMap.GPSMap gpsMap, Graphics2D g2) {
+        Shape shape = getTransform(gpsMap).createTransformedShape(carShape);
         g2.setColor(Color.GREEN);
-        g2.fill(at.createTransformedShape(carShape));
-        g2.setStroke(new BasicStroke(1.0f / div));
+        g2.fill(shape);
+        g2.setStroke(gpsMap.carStroke);
         g2.setColor(Color.BLACK);
-        g2.draw(at.createTransformedShape(carShape));
+        g2.draw(shape);
       }
 
       /**
-       * Update simulated robot car's position
+       * Update simulated robot car's position.  The car's state is kept in World Units (posX, posY) while it
+       * drives, and the step does no allocation, so long and batch simulations do not load the GC.
+       * Note: loc is only updated by getLoc().
+       * @param prevX, prevY location of previous waypoint (or where car started)
+       * @param wayX, wayY location of next waypoint
        * @param simRun true if simulation is enabled
        * @return true if car has reached next waypoint
        */
-      boolean doMove (LonLat wayLon, LonLat prevLon, boolean simRun) {
-        // Convert LonLat Coords into World Coordinates
-        Point.Double prevWay = lonLatToWorld(prevLon);
-        Point.Double wayPnt = lonLatToWorld(wayLon);
-        Point2D.Double position = lonLatToWorld(loc);
-        // Next values in World Units
-        double length = 0.0000057419;       // Length of car
-        double wayRadius = 0.0000305325;    // Radius of waypoint trip point
-        double ciRadius = 0.0000305325;     // Radius of intersect circle around car's pivot point
+      boolean doMove (double prevX, double prevY, double wayX, double wayY, boolean simRun) {
+        syncPos();
         if (speed < 0)
           throw new IllegalArgumentException("Move < 0 not supported");
-        double steerAngle;
-        // Compute steering using line circle intersection
-        Point2D.Double[] ret = intersect(prevWay, wayPnt, position, ciRadius);
-        Point2D.Double ciPos = ret.length < 3 ? ret[0] : ret[1];
-        double tmp = addAngle(angleTo(position, ciPos), -this.angle);
+        // Car steers by its GPS location, which is offset from its true position by any GPS error
+        double carX = posX + gpsErrX, carY = posY + gpsErrY;
+        // Compute steering using line circle intersection (the point where a circle of ciRadius around
+        // the car crosses the line to the waypoint, or the point on the line closest to the car)
+        double dx = wayX - prevX, dy = wayY - prevY;
+        double lab = Math.sqrt(dx * dx + dy * dy);
+        double dvx = dx / lab, dvy = dy / lab;
+        double tt = dvx * (carX - prevX) + dvy * (carY - prevY);
+        double ex = tt * dvx + prevX - carX, ey = tt * dvy + prevY - carY;
+        double lec = Math.sqrt(ex * ex + ey * ey);
+        if (lec < ciRadius) {
+          tt += Math.sqrt(ciRadius * ciRadius - lec * lec);
+        }
+        double ciX = tt * dvx + prevX, ciY = tt * dvy + prevY;
+        // Note: y axis is reversed on screen
+        double toCi = Math.toDegrees(Math.atan2(ciX - carX, carY - ciY));
+        double tmp = addAngle(toCi < 0 ? toCi + 360 : toCi, -angle);
         if (tmp > 180)
           tmp = -(360 - tmp);
-        steerAngle = Math.max(-maxSteer, Math.min(maxSteer, tmp));
-        // Drive around pivot point (approximates bicycle steering)
-        double radius = (1 / Math.tan(Math.abs(steerAngle) * Math.PI / 180)) * length;
-        double pRad = Math.toRadians(steerAngle < 0 ? angle : addAngle(angle, 180));
-        // Compute pivot point
-        Point.Double pivot = new Point.Double(position.x - Math.cos(pRad) * radius, position.y - Math.sin(pRad) * radius);
-        // Compute angle rotated around pivot proportional to distance
-        double circum = radius * 2 * Math.PI;
-        double tAngle = speed / circum * 360 * (steerAngle > 0 ? 1 : -1);
-        // Rotate car's position around pivot point
-        position = rotatePoint(position, pivot, tAngle);
-        // Update car's facing angle
-        angle = addAngle(angle, tAngle);
-        // Update car's newly-computed World position into LonLat coords
-        loc = worldToLonLat(position);
+        double steerAngle = Math.max(-maxSteer, Math.min(maxSteer, tmp));
+        if (steerAngle == 0) {
+          // Drive straight ahead (turn radius is infinite)
+          double rad = Math.toRadians(angle);
+          posX += Math.sin(rad) * speed;
+          posY -= Math.cos(rad) * speed;
+        } else {
+          // Drive around pivot point (approximates bicycle steering)
+          double radius = (1 / Math.tan(Math.abs(steerAngle) * Math.PI / 180)) * length;
+          double pRad = Math.toRadians(steerAngle < 0 ? angle : addAngle(angle, 180));
+          double pivotX = posX - Math.cos(pRad) * radius, pivotY = posY - Math.sin(pRad) * radius;
+          // Compute angle rotated around pivot proportional to distance
+          double circum = radius * 2 * Math.PI;
+          double tAngle = speed / circum * 360 * (steerAngle > 0 ? 1 : -1);
+          // Rotate car's position around pivot point
+          double radians = tAngle * (Math.PI / 180);
+          double cosTheta = Math.cos(radians), sinTheta = Math.sin(radians);
+          double relX = posX - pivotX, relY = posY - pivotY;
+          posX = cosTheta * relX - sinTheta * relY + pivotX;
+          posY = sinTheta * relX + cosTheta * relY + pivotY;
+          // Update car's facing angle
+          angle = addAngle(angle, tAngle);
+        }
+        posAhead = true;
         // Update speed using accel value
         if (simRun) {
           speed = Math.min(maxSpeed, speed + accel);
         } else {
           speed = Math.max(0, speed - decel);
         }
-        // See if car has reached next waypoint
-        double remDist = distanceToGoal(prevWay, wayPnt, position);
+        // See if car has reached next waypoint: compute distance to goal as (dist from prev to way) - (dist
+        // from prev to car), which is positive before the goal, or negative past it
+        double px = posX + gpsErrX - prevX, py = posY + gpsErrY - prevY;
+        double remDist = lab - Math.sqrt(px * px + py * py);
         return remDist < wayRadius;
       }
 
-      void doRotate (GPSTileMap.GPSMap gpsMap, int x, int y) {
-        Point mLoc = gpsMap.getMapLoc(loc);
-        saveAngle = angle = Math.toDegrees(Math.toRadians(180) - Math.atan2(x - mLoc.x, y - mLoc.y)) % 360.0;
+      // Move the car to a location (in World Units)
+      void moveTo (double posX, double posY) {
+        this.posX = posX;
+        this.posY = posY;
+        posAhead = true;
+      }
+
+      // Location (in World Units) of the car
+      double getPosX () {
+        syncPos();
+        return posX;
       }
 
-      /**
-       * Computes the two intersection points between a circle of a defined radius around point c
-       * and a line drawn though two points, a and b, and/or the tangent point closest to the line
-       * from point c.
-       * @param a Starting point
-       * @param b Destination point
-       * @param c Location of Car
-       * @param radius radius of intersect circle
-       * @return Point[3] size array, where:
-       *          Point[0] is circle intesection closest to Starting point
-       *          Point[1] is circle intesection closest to Ending point
-       *          Point[2] is tangent point on line
-       *  or Point[1] size array, where
-       *          Point[0] is tangent point on line
-       */
-      private Point2D.Double[] intersect (Point2D.Double a, Point2D.Double b, Point2D.Double c, double radius) {
-        double dx1 = b.x - a.x;
-        double dy1 = b.y - a.y;
-        // compute the euclidean distance between A and B
-        double lab = Math.sqrt(dx1 * dx1 + dy1 * dy1);
-        // compute the direction vector D from A to B
-        double dvx = dx1 / lab;
-        double dvy = dy1 / lab;
-        // Now the line equation is x = Dx*t + Ax, y = Dy*t + Ay with 0 <= t <= 1.
-        double t = dvx * (c.x - a.x) + dvy * (c.y - a.y);
-        // compute the coordinates of the point E on line and closest to C
-        double ex = t * dvx + a.x;
-        double ey = t * dvy + a.y;
-        // compute the euclidean distance from E to C
-        double dx2 = ex - c.x;
-        double dy2 = ey - c.y;
-        double lec = Math.sqrt(dx2 * dx2 + dy2 * dy2);
-        // test if the line intersects the circle
-        if (lec < radius) {
-          // compute distance from t to circle intersection point
-          double dt = Math.sqrt(radius * radius - lec * lec);
-          // return first and second intersection points
-          return new Point2D.Double[] {new Point2D.Double((t - dt) * dvx + a.x, (t - dt) * dvy + a.y),
-              new Point2D.Double((t + dt) * dvx + a.x, (t + dt) * dvy + a.y),
-              new Point2D.Double(ex, ey)};
-        }
-        // tangent point to circle is E
-        return new Point2D.Double[] {new Point2D.Double(ex, ey),};
+      double getPosY () {
+        syncPos();
+        return posY;
       }
 
       /**
-       * Compute distance to goal as (dist from a to b) - (dist from a to t)
-       * @param a Starting point
-       * @param b Destination point
-       * @param c Location of Car
-       * @return postive dstance to goal, or negative distance past goal
+       * Get location of car, updating loc from the position it was driven to by doMove()
        */
-      private static double distanceToGoal (Point.Double a, Point.Double b, Point.Double c) {
-        double dx1 = b.x - a.x;
-        double dy1 = b.y - a.y;
-        double dst1 = Math.sqrt(dx1 * dx1 + dy1 * dy1);
-        double dx2 = a.x - c.x;
-        double dy2 = a.y - c.y;
-        double dst2 = Math.sqrt(dx2 * dx2 + dy2 * dy2);
-        return dst1 - dst2;
+      LonLat getLoc () {
+        if (posAhead) {
+          loc = posLoc = new LonLat(worldXToLon(posX), worldYToLat(posY));
+          posAhead = false;
+        }
+        return loc;
       }
 
-      private double angleTo (Point2D.Double car, Point2D.Double way) {
-        // Note: y axis is reversed on screen
-        double angle = Math.toDegrees(Math.atan2(way.x - car.x, car.y - way.y));
-        angle = angle < 0 ? angle + 360 : angle;
-        return angle;
+      // Project loc into posX, posY unless the car has moved since loc was set, or loc has not changed
+      private void syncPos () {
+        if (!posAhead && posLoc != loc) {
+          posX = lonToWorldX(loc.lon);
+          posY = latToWorldY(loc.lat);
+          posLoc = loc;
+        }
       }
 
-      private double addAngle (double angle, double add) {
+      void doRotate (GPSTileMap.GPSMap gpsMap, int x, int y) {
+        Point mLoc = getMapLoc(gpsMap);
+        saveAngle = angle = Math.toDegrees(Math.toRadians(180) - Math.atan2(x - mLoc.x, y - mLoc.y)) % 360.0;
+      }
+
+      private static double addAngle (double angle, double add) {
         angle += add;
         if (angle > 360)
           return angle - 360;
@@ -845,76 +1922,79 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
           return angle + 360;
         return angle;
       }
-
-      /**
-       * Rotates one point around another
-       * @param point The point to rotate.
-       * @param center The centre point of rotation.
-       * @param angle The rotation angle in degrees.
-       * @return Rotated point
-       */
-      private Point2D.Double rotatePoint (Point2D.Double point, Point2D.Double center, double angle) {
-        double radians = angle * (Math.PI / 180);
-        double cosTheta = Math.cos(radians);
-        double sinTheta = Math.sin(radians);
-        return new Point2D.Double(
-            (cosTheta * (point.x - center.x) - sinTheta * (point.y - center.y) + center.x),
-            (sinTheta * (point.x - center.x) + cosTheta * (point.y - center.y) + center.y)
-        );
-      }
     }
 
+    /**
+     * Copy of one waypoint in a MarkSet's WaypointStore (see MarkSet.getWaypoint()) used to edit, or drag it.
+     * Note: also the form waypoints were serialized in by legacy .mrk files
+     */
     static class Waypoint extends Drawable implements Serializable {
       private static final long  serialVersionUID = 7686575480337322227L;
+      static final int   wayDiameter = 25;
       String   sel;
       boolean  avoidBarrels, jumpRamp, raiseFlag;
       int      heading;
+      transient int index = -1;       // index in WaypointStore
 
       Waypoint (LonLat loc, String sel) {
-        super(loc, 25);
+        super(loc, wayDiameter);
         this.sel = sel;
       }
 
-      Object[] doDraw (GPSTileMap.GPSMap gpsMap, Graphics2D g2, Waypoint way, int num, Object[] ret) {
-        int dia = diameter / (22 - gpsMap.zoom);
+      int getFlags () {
+        return (avoidBarrels ? WaypointStore.AVOID_BARRELS : 0) | (jumpRamp ? WaypointStore.JUMP_RAMP : 0) |
+            (raiseFlag ? WaypointStore.RAISE_FLAG : 0);
+      }
+
+      void setFlags (int flags) {
+        avoidBarrels = (flags & WaypointStore.AVOID_BARRELS) != 0;
+        jumpRamp = (flags & WaypointStore.JUMP_RAMP) != 0;
+        raiseFlag = (flags & WaypointStore.RAISE_FLAG) != 0;
+      }
+
+      // Note: lines which join waypoints are drawn by GPSMap
+      static void draw (GPSTileMap.GPSMap gpsMap, Graphics2D g2, Point mLoc, int num, String sel) {
+        int dia = (int) (wayDiameter / gpsMap.getIconDivisor());
         int hDia = dia / 2;
         g2.setColor(Color.WHITE);
-        Point mLoc = gpsMap.getMapLoc(loc);
         g2.drawLine(mLoc.x, mLoc.y - hDia, mLoc.x, mLoc.y - hDia / 2);
         g2.drawLine(mLoc.x, mLoc.y + hDia, mLoc.x, mLoc.y + hDia / 2);
         g2.drawLine(mLoc.x - hDia, mLoc.y, mLoc.x - hDia / 2, mLoc.y);
         g2.drawLine(mLoc.x + hDia, mLoc.y, mLoc.x + hDia / 2, mLoc.y);
-        g2.setStroke(thick[21 - gpsMap.zoom]);
+        g2.setStroke(gpsMap.thickStroke);
         g2.drawOval(mLoc.x - hDia, mLoc.y - hDia, dia, dia);
+        if (gpsMap.showNumbers) {
+          String label = getLabel(gpsMap, num, sel);
+          g2.setColor(Color.BLACK);
+          g2.drawString(label, mLoc.x + hDia + 1, mLoc.y - hDia + 1);
+          g2.setColor(Color.WHITE);
+          g2.drawString(label, mLoc.x + hDia, mLoc.y - hDia);
+        }
+      }
+
+      private static String getLabel (GPSTileMap.GPSMap gpsMap, int num, String sel) {
         StringBuilder buf = new StringBuilder();
         if (gpsMap.showNumbers)
           buf.append(num);
         if (gpsMap.showSettings) {
           if (gpsMap.showNumbers)
             buf.append("-");
-          buf.append(way.sel);
+          buf.append(sel);
         }
+        return buf.toString();
+      }
+
+      Rectangle getBounds (GPSTileMap.GPSMap gpsMap) {
+        Rectangle bounds = super.getBounds(gpsMap);
         if (gpsMap.showNumbers) {
-          g2.setColor(Color.BLACK);
-          g2.drawString(buf.toString(), mLoc.x + hDia + 1, mLoc.y - hDia + 1);
-          g2.setColor(Color.WHITE);
-          g2.drawString(buf.toString(), mLoc.x + hDia, mLoc.y - hDia);
-        }
-        if (gpsMap.showWayLines) {
-          g2.setStroke(new BasicStroke(1.0f));
-          if (ret != null && ret.length == 1) {
-            Point lp = (Point) ret[0];
-            g2.drawLine(lp.x, lp.y, mLoc.x, mLoc.y);
-            return new Object[] {lp, new Point(mLoc.x, mLoc.y)};
-          } else if (ret != null && ret.length == 2) {
-            Point fp = (Point) ret[0];
-            Point lp = (Point) ret[1];
-            g2.drawLine(lp.x, lp.y, mLoc.x, mLoc.y);
-            return new Object[] {fp, new Point(mLoc.x, mLoc.y)};
-          }
-          return new Object[] {new Point(mLoc.x, mLoc.y)};
+          // Include label drawn to the upper right of the icon
+          Point mLoc = getMapLoc(gpsMap);
+          int hDia = (int) (diameter / gpsMap.getIconDivisor()) / 2;
+          FontMetrics fm = gpsMap.getFontMetrics(gpsMap.getFont());
+          String label = getLabel(gpsMap, index + 1, sel);
+          bounds.add(new Rectangle(mLoc.x + hDia, mLoc.y - hDia - fm.getAscent(), fm.stringWidth(label) + 2, fm.getHeight() + 2));
         }
-        return null;
+        return bounds;
       }
     }
 
@@ -1009,16 +2089,31 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
     // Utility methods
 
     Drawable findDrawable (int x, int y) {
-      for (Drawable mrk : markSet.waypoints) {
-        if (mrk.selects(this, x, y)) {
-          return mrk;
-        }
+      double wx = (winX + x) / worldScale;
+      double wy = (winY + y) / worldScale;
+      // Note: waypoints take priority over markers
+      int way = findWaypoint(wx, wy);
+      if (way >= 0) {
+        return markSet.getWaypoint(way);
       }
-      for (Drawable mrk : markSet.markers) {
+      // Find markers near the point using the spatial index, then the closest one wins
+      double radius = markSet.getMaxDiameter() / getIconDivisor() / worldScale;
+      List<Drawable> near = new ArrayList<>();
+      markSet.getIndex().query(wx - radius, wy - radius, wx + radius, wy + radius, near::add);
+      Drawable found = null;
+      double best = 0;
+      for (Drawable mrk : near) {
         if (mrk.selects(this, x, y)) {
-          return mrk;
+          double dist = mrk.getMapLoc(this).distanceSq(x, y);
+          if (found == null || dist < best) {
+            found = mrk;
+            best = dist;
+          }
         }
       }
+      if (found != null) {
+        return found;
+      }
       if (markSet.gpsReference != null &&  markSet.gpsReference.selects(this, x, y)) {
         return markSet.gpsReference;
       }
@@ -1028,12 +2123,32 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       return null;
     }
 
+    // Index of the waypoint closest to a point (in world coordinates) whose icon covers it, or -1 if none
+    private int findWaypoint (double wx, double wy) {
+      // Note: same test as Drawable.selects()
+      double radius = Math.ceil(Waypoint.wayDiameter / getIconDivisor()) / worldScale;
+      PolylineIndex line = markSet.getWayLine();
+      int[] found = {-1};
+      double[] best = {radius * radius};
+      line.query(wx - radius, wy - radius, wx + radius, wy + radius, (from, to) -> {
+        for (int ii = from; ii < to; ii++) {
+          double dx = line.getX(ii) - wx, dy = line.getY(ii) - wy;
+          double dist = dx * dx + dy * dy;
+          if (dist < best[0]) {
+            found[0] = ii;
+            best[0] = dist;
+          }
+        }
+      });
+      return found[0];
+    }
+
     boolean touches (Drawable mrk, int x, int y) {
       return mrk != null && mrk.selects(this, x, y);
     }
 
     private void setPosition (Drawable mrk, int x, int y) {
-      mrk.loc = getMapLonLat(x, y);
+      markSet.moveItem(mrk, getMapLonLat(x, y));
     }
 
     void setTool (String tool) {
@@ -1066,6 +2181,12 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
           return;
         }
         Point mp = rotate(new Point(event.getX(), event.getY()));
+        mouseDown(mp);
+        dragUndo = selected != null ? getRestore(selected) : null;
+        dragged = false;
+      }
+
+      private void mouseDown (Point mp) {
         if ("arrow".equals(tool)) {
           Drawable mrk = findDrawable(mp.x, mp.y);
           if (mrk instanceof Waypoint || (mrk instanceof Marker && moveMarkers) ||
@@ -1084,7 +2205,8 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
           Drawable mrk = findDrawable(mp.x, mp.y);
           if (mrk instanceof Waypoint) {
             Waypoint way = (Waypoint) mrk;
-            int num = markSet.waypoints.indexOf(way) + 1;
+            Waypoint old = markSet.getWaypoint(way.index);
+            int num = way.index + 1;
             JCheckBox chk1 = new JCheckBox("Avoid Barrels");
             chk1.setSelected(way.avoidBarrels);
             JCheckBox chk2 = new JCheckBox("Jump Ramp");
@@ -1124,7 +2246,9 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
                 way.raiseFlag = false;
                 way.heading = 0;
               }
-              repaint();
+              markSet.updateWaypoint(way);
+              history.add(UndoHistory.command(() -> markSet.updateWaypoint(old), () -> markSet.updateWaypoint(way), 200));
+              redrawWaypoints();
             }
           } else if (mrk instanceof GPSReference) {
             JTextField lat = new JTextField();
@@ -1136,38 +2260,51 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
             String latTxt = lat.getText();
             if (notEmpty(latTxt) && notEmpty(lonTxt)) {
               // Save coordinates to GPS Reference
-              markSet.gpsReference.setLoc(toDouble(latTxt), toDouble(lonTxt));
+              GPSReference ref = markSet.gpsReference;
+              double oldLat = ref.refLat, oldLon = ref.refLon, newLat = toDouble(latTxt), newLon = toDouble(lonTxt);
+              ref.setLoc(newLat, newLon);
+              markSet.itemChanged(ref);
+              history.add(UndoHistory.command(() -> {
+                ref.setLoc(oldLat, oldLon);
+                markSet.itemChanged(ref);
+              }, () -> {
+                ref.setLoc(newLat, newLon);
+                markSet.itemChanged(ref);
+              }, 100));
               toolInfo.setText("dLat: " + lonLatFmt.format(markSet.gpsReference.refLat - markSet.gpsReference.loc.lat) +
                   ", dLon: " + lonLatFmt.format(markSet.gpsReference.refLon - markSet.gpsReference.loc.lon));
-              repaint();
+              redrawWaypoints();
             } else if (lonTxt != null) {
               JOptionPane.showMessageDialog(null, "Must provide lat and lon values");
             }
           }
         } else if ("pin".equals(tool)) {
           LonLat loc = getMapLonLat(mp.x, mp.y);
-          markSet.waypoints.add(new Waypoint(loc, settings.getDefault()));
+          Waypoint way = new Waypoint(loc, settings.getDefault());
+          markSet.addWaypoint(way);
+          int idx = way.index;
+          history.add(UndoHistory.command(() -> markSet.removeWaypoint(markSet.getWaypoint(idx)), () -> markSet.insertWaypoint(idx, way), 200));
           toolInfo.setText(lonLatFmt.format(loc.lat) + ", " + lonLatFmt.format(loc.lon));
-          repaint();
+          redrawWaypoints();
         } else if ("barrel".equals(tool)) {
           LonLat loc = getMapLonLat(mp.x, mp.y);
-          markSet.markers.add(new Marker(MarkerType.CIRCLE, loc, 23, Color.RED));
+          addMarker(new Marker(MarkerType.CIRCLE, loc, 23, Color.RED));
           toolInfo.setText(lonLatFmt.format(loc.lat) + ", " + lonLatFmt.format(loc.lon));
-          repaint();
+          redrawMarkers();
         } else if ("ramp".equals(tool)) {
           LonLat loc = getMapLonLat(mp.x, mp.y);
           Marker ramp = new Marker(MarkerType.RECT, loc, 45, Color.BLUE, 60);
           selected = ramp;
-          markSet.markers.add(ramp);
+          addMarker(ramp);
           toolInfo.setText(lonLatFmt.format(loc.lat) + ", " + lonLatFmt.format(loc.lon));
-          repaint();
+          redrawMarkers();
         } else if ("hoop".equals(tool)) {
           LonLat loc = getMapLonLat(mp.x, mp.y);
           Marker hoop = new Marker(MarkerType.HOOP, loc, 60, Color.GREEN, 60);
           selected = hoop;
-          markSet.markers.add(hoop);
+          addMarker(hoop);
           toolInfo.setText(lonLatFmt.format(loc.lat) + ", " + lonLatFmt.format(loc.lon));
-          repaint();
+          redrawMarkers();
         } else if ("stanchion".equals(tool)) {
           Marker first = null;
           // Find first Stanchion in chain
@@ -1179,35 +2316,42 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
               break;
           }
           if (touches(first, mp.x, mp.y)) {
-            markSet.markers.add(new Marker(true));
+            addMarker(new Marker(true));
           } else {
             LonLat loc = getMapLonLat(mp.x, mp.y);
-            markSet.markers.add(new Marker(MarkerType.POLY, loc, 12, Color.YELLOW));
+            addMarker(new Marker(MarkerType.POLY, loc, 12, Color.YELLOW));
             toolInfo.setText(lonLatFmt.format(loc.lat) + ", " + lonLatFmt.format(loc.lon));
           }
-          repaint();
+          redrawMarkers();
         } else if ("gps".equals(tool)) {
           LonLat loc = getMapLonLat(mp.x, mp.y);
-          markSet.gpsReference = new GPSReference(loc);
-          repaint();
+          setGpsReference(new GPSReference(loc));
+          redrawWaypoints();
         } else if ("car".equals(tool)) {
           LonLat loc = getMapLonLat(mp.x, mp.y);
-          selected = markSet.simCar = new SimCar(loc);
+          setSimCar(new SimCar(loc));
+          selected = markSet.simCar;
           gpsTileMap.runStop.setEnabled(true);
           repaint();
         } else if ("trash".equals(tool)) {
           Drawable mkr = findDrawable(mp.x, mp.y);
           if (mkr instanceof Waypoint) {
-            markSet.waypoints.remove(mkr);
-            repaint();
+            Waypoint way = (Waypoint) mkr;
+            int idx = way.index;
+            markSet.removeWaypoint(way);
+            history.add(UndoHistory.command(() -> markSet.insertWaypoint(idx, way), () -> markSet.removeWaypoint(markSet.getWaypoint(idx)), 200));
+            redrawWaypoints();
           } else if (mkr instanceof GPSReference) {
-            markSet.gpsReference = null;
-            repaint();
+            setGpsReference(null);
+            redrawWaypoints();
           } else if (mkr instanceof Marker) {
-            markSet.markers.remove(mkr);
-            repaint();
+            Marker mrk = (Marker) mkr;
+            int idx = markSet.markers.indexOf(mrk);
+            markSet.removeMarker(mrk);
+            history.add(UndoHistory.command(() -> markSet.insertMarker(idx, mrk), () -> markSet.removeMarker(mrk), 200));
+            redrawMarkers();
           } else if (mkr instanceof SimCar) {
-            markSet.simCar = null;
+            setSimCar(null);
             gpsTileMap.runStop.setEnabled(false);
             repaint();
           } else {
@@ -1216,20 +2360,14 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
         } else if ("tape".equals(tool)) {
           Drawable mkr = findDrawable(mp.x, mp.y);
           if (mkr instanceof Waypoint) {
-            boolean first = true;
             double feet = 0;
-            LonLat lst = null;
-            for (Waypoint way : markSet.waypoints) {
-              if (first) {
-                lst = way.loc;
-                first = false;
-              } else {
-                LonLat nxt = way.loc;
-                feet += distanceInFeet(lst, nxt);
-                lst = nxt;
-              }
-              toolInfo.setText("Total waypoint distance is " + feetFmt.format(feet) + " feet");
+            LonLat lst = markSet.getWaypointLoc(0);
+            for (int ii = 1; ii < markSet.getWaypointCount(); ii++) {
+              LonLat nxt = markSet.getWaypointLoc(ii);
+              feet += distanceInFeet(lst, nxt);
+              lst = nxt;
             }
+            toolInfo.setText("Total waypoint distance is " + feetFmt.format(feet) + " feet");
           } else {
             tapeStart = new Point(mp.x, mp.y);
           }
@@ -1237,19 +2375,25 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       }
 
       public void mouseReleased (MouseEvent event) {
+        if (dragged && selected != null) {
+          history.add(UndoHistory.command(dragUndo, getRestore(selected), 200));
+        }
+        dragged = false;
+        dragUndo = null;
         if ("arrow".equals(tool)) {
           if (selected != null) {
             repaint();
             selected = null;
           }
         } else if ("hand".equals(tool)) {
-          prefs.putInt("window.offX", offX);
-          prefs.putInt("window.offY", offY);
+          prefs.putDouble("window.offX", offX);
+          prefs.putDouble("window.offY", offY);
         } else if ("tape".equals(tool)) {
           if (tapeStart != null) {
+            Rectangle dirty = getTapeBounds();
             tapeStart = null;
             tapeEnd = null;
-            repaint();
+            repaintMap(dirty);
           }
         }
       }
@@ -1261,25 +2405,33 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
         boolean shiftDown = event.isShiftDown();
         if ("arrow".equals(tool) || "ramp".equals(tool) || "hoop".equals(tool) || "car".equals(tool)) {
           if (selected != null) {
+            Rectangle dirty = getDirtyBounds(selected);
             if (shiftDown && selected instanceof Marker) {
               ((Marker) selected).doRotate(gpsTileMap.gpsMap, mp.x, mp.y);
+              markSet.itemChanged(selected);
             } else if (shiftDown && selected instanceof SimCar) {
               ((SimCar) selected).doRotate(gpsTileMap.gpsMap, mp.x, mp.y);
+              markSet.itemChanged(selected);
             } else {
               setPosition(selected, mp.x, mp.y);
             }
-            repaint();
+            dirty.add(getDirtyBounds(selected));
+            redrawItem(selected, dirty);
+            dragged = true;
           }
         } else if ("hand".equals(tool)) {
           win = getSize();
-          int dX = sX - mp.x;
-          int dY = sY - mp.y;
-          int base = zoom - BaseZoom;
-          offX = Math.max(0, Math.min(zoomLevels[base].width - win.width, pX + dX));
-          offY = Math.max(0, Math.min(zoomLevels[base].height - win.height, pY + dY));
-          repaint();
-        } else if ("tape".equals(tool)) {
+          double dX = sX - mp.x;
+          double dY = sY - mp.y;
+          // Note: map can be dragged in any direction and missing tiles are loaded as needed
+          offX = pX + dX;
+          offY = pY + dY;
+          updateView();
+          redraw();
+        } else if ("tape".equals(tool) && tapeStart != null) {
+          Rectangle dirty = getTapeBounds();
           tapeEnd = new Point(mp.x, mp.y);
+          dirty.add(getTapeBounds());
           if (shiftDown) {
             Point.Double loc1 = lonLatToWorld(getMapLonLat(tapeStart.x, tapeStart.y));
             Point.Double loc2 = lonLatToWorld(getMapLonLat(tapeEnd.x, tapeEnd.y));
@@ -1300,7 +2452,7 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
             // Note: 1 kilometer is 3280.84 feet
             toolInfo.setText("Distance is " + feetFmt.format(dist * 3280.84) + " feet");
           }
-          repaint();
+          repaintMap(dirty);
         }
       }
     }
@@ -1310,38 +2462,94 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       this.prefs = prefs;
       this.toolInfo = toolInfo;
       setBackground(Color.white);
+      // Note: paint() manages its own back buffer
+      setDoubleBuffered(false);
       addMouseListener(new MyMouseAdapter());
       addMouseMotionListener(new MyMouseMotionAdapter());
-      offX = prefs.getInt("window.offX", 373);
-      offY = prefs.getInt("window.offY", 480);
-      zoom = prefs.getInt("window.zoom", 20);
-    }
-
-    void changeZoom (int newZoom) {
-      int oldIdx = zoom - BaseZoom;
-      int newIdx = newZoom - BaseZoom;
-      int hWid = win.width / 2;
-      int hHyt = win.height / 2;
-      double dx = (double) (offX + hWid) / zoomLevels[oldIdx].width;
-      double dy = (double) (offY + hHyt) / zoomLevels[oldIdx].height;
-      offX = (int) (dx * zoomLevels[newIdx].width) - hWid;
-      offY = (int) (dy * zoomLevels[newIdx].height) - hHyt;
-      offX = Math.max(0, Math.min(zoomLevels[newIdx].width - win.width, offX));
-      offY = Math.max(0, Math.min(zoomLevels[newIdx].height - win.height, offY));
-      this.zoom = newZoom;
-      prefs.putInt("window.zoom", zoom);
-      prefs.putInt("window.offX", offX);
-      prefs.putInt("window.offY", offY);
+      offX = prefs.getDouble("window.offX", 373);
+      offY = prefs.getDouble("window.offY", 480);
+      setZoom(prefs.getDouble("window.zoom", 20));
+      tileImages = new TileImageCache(prefs.getInt("tilemem.mb", 64) * 1024L * 1024L);
+      // Mouse wheel zooms in and out around the mouse pointer in fractional steps
+      addMouseWheelListener(ev -> {
+        if (mapSet != null) {
+          Point mp = rotate(new Point(ev.getX(), ev.getY()));
+          changeZoom(zoom - ev.getPreciseWheelRotation() * 0.25, mp.x, mp.y);
+          gpsTileMap.updateZoomMenu();
+          redraw();
+        }
+      });
+    }
+
+    void changeZoom (double newZoom) {
+      Dimension size = win != null ? win : getSize();
+      changeZoom(newZoom, size.width / 2, size.height / 2);
+    }
+
+    /**
+     * Change zoom level while keeping the map location at (px, py) in the same position in the window
+     * @param newZoom zoom level (may be fractional)
+     */
+    void changeZoom (double newZoom, int px, int py) {
+      newZoom = Math.max(MinZoom, Math.min(MaxViewZoom, newZoom));
+      if (mapSet != null) {
+        Point2D.Double oldOrg = mapSet.getOrigin(zoom);
+        Point2D.Double newOrg = mapSet.getOrigin(newZoom);
+        double scale = Math.pow(2, newZoom - zoom);
+        offX = (oldOrg.x + offX + px) * scale - newOrg.x - px;
+        offY = (oldOrg.y + offY + py) * scale - newOrg.y - py;
+      }
+      setZoom(newZoom);
+      prefs.putDouble("window.zoom", zoom);
+      prefs.putDouble("window.offX", offX);
+      prefs.putDouble("window.offY", offY);
+    }
+
+    private void setZoom (double zoom) {
+      this.zoom = zoom;
+      worldScale = Math.pow(2, zoom);
+      // Line width for icons is 3 at zoom 21, 2 at zoom 20 and 1 at zoom 19 and below
+      thickStroke = new BasicStroke((float) Math.max(1.0, zoom - (MaxZoom - 3)));
+      carStroke = new BasicStroke((float) Math.pow(2, zoom - MaxZoom));
+      updateView();
+    }
+
+    // Note: must be called after any change to zoom, offX, offY or mapSet
+    private void updateView () {
+      if (mapSet != null) {
+        Point2D.Double org = mapSet.getOrigin(zoom);
+        winX = org.x + offX;
+        winY = org.y + offY;
+      } else {
+        winX = offX;
+        winY = offY;
+      }
+      viewStamp++;
+    }
+
+    /**
+     * Get divisor for icon sizes, which are defined for zoom 21.  Divisor is 1 at zoom 21, 2 at zoom 20,
+     * 3 at zoom 19, and so on, and 0.5 at zoom 22.
+     */
+    double getIconDivisor () {
+      return Math.max(0.5, MaxZoom + 1 - zoom);
     }
 
     Point getMapLoc (LonLat loc) {
-      Point pLoc = lonLanToPixel(loc, zoom);
-      return new Point(pLoc.x - (mapSet.getUlLoc(zoom).x + offX), pLoc.y - (mapSet.getUlLoc(zoom).y + offY));
+      return new Point(toMapX(lonToWorldX(loc.lon)), toMapY(latToWorldY(loc.lat)));
+    }
+
+    // Convert world coordinates to window coordinates
+    private int toMapX (double worldX) {
+      return (int) Math.floor(worldX * worldScale - winX);
+    }
+
+    private int toMapY (double worldY) {
+      return (int) Math.floor(worldY * worldScale - winY);
     }
 
     LonLat getMapLonLat (int mx, int my) {
-      Point pLoc = new Point(mapSet.getUlLoc(zoom).x + offX + mx, mapSet.getUlLoc(zoom).y + offY + my);
-      return GPSMap.pixelToLonLat(pLoc,  zoom);
+      return new LonLat(worldXToLon((winX + mx) / worldScale), worldYToLat((winY + my) / worldScale));
     }
 
     void persistSettings () {
@@ -1356,105 +2564,554 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       }
     }
 
-    void resetSettings () {
-      settings = new Settings();
-      persistSettings();
-      clearWaypoints();
+    void resetSettings () {
+      settings = new Settings();
+      persistSettings();
+      clearWaypoints();
+    }
+
+
+    void saveSettings (String data) {
+      settings.setSettings(data);
+      persistSettings();
+      clearWaypoints();
+    }
+
+    void initSettiings () {
+      byte[] tmp = prefs.getByteArray("settings", null);
+      if (tmp != null) {
+        try {
+          settings = (Settings) (new ObjectInputStream(new ByteArrayInputStream(tmp))).readObject();
+        } catch (Exception ex) {
+          prefs.remove("settings");
+        }
+      }
+      if (settings == null){
+        resetSettings();
+      }
+    }
+
+    void clearWaypoints () {
+      WaypointStore old = markSet.clearWaypoints();
+      history.add(UndoHistory.command(() -> markSet.setWaypoints(old), markSet::clearWaypoints, old.getEncodedSize()));
+      redrawWaypoints();
+    }
+
+    void loadWaypoints (CsvReader in) throws IOException {
+      replaceWaypoints(markSet.loadWaypoints(in, settings));
+    }
+
+    /**
+     * Read and simplify a track in the background, then replace the waypoints with it
+     * @param finished called (on the EDT) when the import has finished, or failed
+     */
+    void importTrack (File file, TrackImporter.Simplifier simplifier, Runnable finished) {
+      String sel = settings.getDefault();
+      long start = System.currentTimeMillis();
+      toolInfo.setText("Importing " + file.getName() + "...");
+      new SwingWorker<WaypointStore, Void>() {
+        @Override
+        protected WaypointStore doInBackground () throws Exception {
+          return TrackImporter.read(file, simplifier, sel);
+        }
+
+        @Override
+        protected void done () {
+          try {
+            WaypointStore old = markSet.wayStore;
+            markSet.setWaypoints(get());
+            replaceWaypoints(old);
+            toolInfo.setText("Imported " + simplifier.points + " track points as " + markSet.getWaypointCount() +
+                             " waypoints in " + (System.currentTimeMillis() - start) + " ms");
+          } catch (Exception ex) {
+            Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+            cause.printStackTrace(System.out);
+            toolInfo.setText("Import failed");
+            gpsTileMap.showErrorDialog("Unable to import track from " + file.getName() + ": " + cause.getMessage());
+          } finally {
+            finished.run();
+          }
+        }
+      }.execute();
+    }
+
+    // Record the replacement of the waypoints by new waypoints
+    private void replaceWaypoints (WaypointStore old) {
+      WaypointStore now = markSet.wayStore;
+      history.add(UndoHistory.command(() -> markSet.setWaypoints(old), () -> markSet.setWaypoints(now),
+                                      old.getEncodedSize() + now.getEncodedSize()));
+      redrawWaypoints();
+    }
+
+    void resetMarkers () {
+      setMarkers(markSet.resetMarkers());
+    }
+
+    void loadMarkers (CsvReader in) throws IOException {
+      setMarkers(markSet.loadMarkers(in));
+    }
+
+    // Record the replacement of the markers by new markers
+    private void setMarkers (List<Marker> old) {
+      List<Marker> now = markSet.markers;
+      history.add(UndoHistory.command(() -> markSet.setMarkers(old), () -> markSet.setMarkers(now), (old.size() + now.size()) * 100L));
+      redrawMarkers();
+    }
+
+    void addMarker (Marker mrk) {
+      markSet.addMarker(mrk);
+      int idx = markSet.markers.size() - 1;
+      history.add(UndoHistory.command(() -> markSet.removeMarker(mrk), () -> markSet.insertMarker(idx, mrk), 200));
+    }
+
+    private void setGpsReference (GPSReference ref) {
+      GPSReference old = markSet.gpsReference;
+      markSet.setGpsReference(ref);
+      history.add(UndoHistory.command(() -> markSet.setGpsReference(old), () -> markSet.setGpsReference(ref), 200));
+    }
+
+    private void setSimCar (SimCar car) {
+      SimCar old = markSet.simCar;
+      markSet.setSimCar(car);
+      history.add(UndoHistory.command(() -> markSet.setSimCar(old), () -> markSet.setSimCar(car), 300));
+    }
+
+    // Returns a Runnable which restores an item to its current location (and rotation)
+    private Runnable getRestore (Drawable item) {
+      LonLat loc = item.loc;
+      if (item instanceof Marker) {
+        Marker mrk = (Marker) item;
+        int rotation = mrk.rotation;
+        return () -> {
+          mrk.rotation = rotation;
+          markSet.moveItem(mrk, loc);
+        };
+      } else if (item instanceof SimCar) {
+        SimCar car = (SimCar) item;
+        double angle = car.angle, saveAngle = car.saveAngle;
+        return () -> {
+          car.angle = angle;
+          car.saveAngle = saveAngle;
+          markSet.moveItem(car, loc);
+        };
+      }
+      return () -> markSet.moveItem(item, loc);
+    }
+
+    void undo () {
+      if (history.canUndo()) {
+        history.undo();
+        undone();
+      } else {
+        toolInfo.setText("Nothing to undo");
+      }
+    }
+
+    void redo () {
+      if (history.canRedo()) {
+        history.redo();
+        undone();
+      } else {
+        toolInfo.setText("Nothing to redo");
+      }
+    }
+
+    private void undone () {
+      selected = null;
+      gpsTileMap.runStop.setEnabled(markSet.simCar != null);
+      redraw();
+    }
+
+    void loadMap (String mapName) throws Exception {
+      if (MapSet.needsMigration(mapName)) {
+        // Convert old format map (and build its zoom levels) in the background, then show it
+        ProgressMonitor pbar = new ProgressMonitor(this, "Converting Map...", null, 0, 100);
+        pbar.setMillisToPopup(10);
+        new SwingWorker<MapSet, Integer>() {
+          @Override
+          protected MapSet doInBackground () throws Exception {
+            MapSet.migrateMapSet(mapName, percent -> publish(percent));
+            return MapSet.loadMapSet(mapName);
+          }
+
+          @Override
+          protected void process (List<Integer> chunks) {
+            pbar.setProgress(chunks.get(chunks.size() - 1));
+          }
+
+          @Override
+          protected void done () {
+            try {
+              setMap(get());
+            } catch (Exception ex) {
+              ex.printStackTrace(System.out);
+              gpsTileMap.showErrorDialog("Unable to convert map: " + mapName);
+            } finally {
+              pbar.close();
+            }
+          }
+        }.execute();
+      } else {
+        setMap(MapSet.loadMapSet(mapName));
+      }
+    }
+
+    void setMap (MapSet mapSet) {
+      if (this.mapSet != null && this.mapSet != mapSet) {
+        this.mapSet.close();
+      }
+      tileImages.clear();
+      this.mapSet = mapSet;
+      updateView();
+      mapSet.startFetching(gpsTileMap.tileCache, prefs.getInt("download.threads", 8), () -> SwingUtilities.invokeLater(this::redrawMap));
+      setTool("arrow");
+      screenRotate = prefs.getBoolean("rotate.on", false);
+      showMarkers = prefs.getBoolean("markers.on", true);
+      moveMarkers = prefs.getBoolean("move_markers.on", false);
+      showNumbers = prefs.getBoolean("numbers.on", false);
+      showSettings = prefs.getBoolean("settings.on", false);
+      showWayLines = prefs.getBoolean("waylines.on", true);
+      if (markSet != null) {
+        try {
+          markSet.closeJournal();
+        } catch (IOException ex) {
+          ex.printStackTrace(System.out);
+        }
+      }
+      try {
+        markSet = MarkSet.load(mapSet.name);
+      } catch (IOException ex) {
+        ex.printStackTrace(System.out);
+        // Keep the damaged file, rather than overwrite it with an empty MarkSet on the next save
+        File file = MarkSet.getFile(mapSet.name);
+        File bad = new File(file.getPath() + ".bad");
+        String msg = "Unable to load markers and waypoints for " + mapSet.name + ": " + ex.getMessage();
+        bad.delete();
+        if (file.renameTo(bad)) {
+          msg += "\nFile has been renamed to " + bad.getName();
+        }
+        gpsTileMap.showErrorDialog(msg);
+        markSet = new MarkSet(mapSet.name);
+      }
+      history.clear();
+      try {
+        markSet.openJournal();
+      } catch (IOException ex) {
+        ex.printStackTrace(System.out);
+        gpsTileMap.showErrorDialog("Unable to recover unsaved edits for " + mapSet.name + ": " + ex.getMessage());
+      }
+      initSettiings();
+      gpsTileMap.runStop.setEnabled(markSet.simCar != null);
+      redraw();
+    }
+
+    void saveMarkers () {
+      if (markSet != null){
+        try {
+          markSet.save();
+        } catch (IOException ex) {
+          ex.printStackTrace(System.out);
+          gpsTileMap.showErrorDialog("Unable to save markers and waypoints for " + markSet.name + ": " + ex.getMessage());
+        }
+      }
+    }
+
+    /**
+     * Redraw the window, or just the area within the clip when repaintMap() has been used to request a
+     * partial update.  The window is composed in an accelerated back buffer, which is kept between calls,
+     * from cached images of the map, marker and waypoint layers (each redrawn only when invalidated) with
+     * the moving items (car and tape measure) drawn on top.
+     */
+    public void paint (Graphics g) {
+      win = getSize();
+      if (win.width <= 0 || win.height <= 0) {
+        return;
+      }
+      GraphicsConfiguration gc = getGraphicsConfiguration();
+      Rectangle clip = g.getClipBounds();
+      do {
+        int valid = VolatileImage.IMAGE_INCOMPATIBLE;
+        if (backBuf != null && backBuf.getWidth() == win.width && backBuf.getHeight() == win.height) {
+          valid = backBuf.validate(gc);
+        }
+        if (valid == VolatileImage.IMAGE_INCOMPATIBLE) {
+          backBuf = createVolatileImage(win.width, win.height);
+        }
+        // Contents of a new, or restored buffer are undefined, so it has to be redrawn in full
+        Rectangle area = valid == VolatileImage.IMAGE_OK && clip != null ? clip : new Rectangle(win);
+        Graphics2D g2 = backBuf.createGraphics();
+        try {
+          g2.clip(area);
+          g2.drawImage(mapLayer.update(gc, win, this::drawMapLayer), 0, 0, null);
+          if (mapSet != null && markSet != null) {
+            if (showMarkers) {
+              g2.drawImage(markerLayer.update(gc, win, this::drawMarkerLayer), 0, 0, null);
+            }
+            g2.drawImage(wayLayer.update(gc, win, this::drawWayLayer), 0, 0, null);
+          }
+          setupGraphics(g2);
+          if (mapSet != null && markSet != null && markSet.simCar != null) {
+            markSet.simCar.doDraw(this, g2);
+          }
+          if (tapeStart != null  &&  tapeEnd != null) {
+            g2.setColor(Color.WHITE);
+            g2.drawLine(tapeStart.x, tapeStart.y, tapeEnd.x, tapeEnd.y);
+          }
+        } finally {
+          g2.dispose();
+        }
+        g.drawImage(backBuf, 0, 0, this);
+      } while (backBuf.contentsLost());
+    }
+
+    private void setupGraphics (Graphics2D g2) {
+      if (screenRotate) {
+        g2.rotate(Math.toRadians(180));
+        g2.translate(-win.width, -win.height);
+      }
+      g2.setFont(getFont());
+      g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    }
+
+    private void drawMapLayer (Graphics2D g2) {
+      g2.setBackground(getBackground());
+      g2.clearRect(0, 0, win.width, win.height);
+      if (mapSet != null) {
+        setupGraphics(g2);
+        mapSet.drawMap(g2, zoom, winX, winY, win, tileImages);
+      }
+    }
+
+    /**
+     * Get the area of the window being drawn in world coordinates
+     * @param margin pixels to add on each side (for icons and labels of items just outside the area)
+     * @return rectangle as {x0, y0, x1, y1}
+     */
+    private double[] getViewport (Graphics2D g2, int margin) {
+      Rectangle clip = g2.getClipBounds();
+      if (clip == null) {
+        clip = new Rectangle(win);
+      }
+      return new double[] {(winX + clip.x - margin) / worldScale, (winY + clip.y - margin) / worldScale,
+                           (winX + clip.x + clip.width + margin) / worldScale, (winY + clip.y + clip.height + margin) / worldScale};
+    }
+
+    // Note: only markers, and Stanchion lines, which intersect the area being drawn are drawn
+    private void drawMarkerLayer (Graphics2D g2) {
+      setupGraphics(g2);
+      List<Marker> markers = markSet.markers;
+      PolylineIndex line = markSet.getMarkerLine();
+      int margin = (int) (markSet.getMaxDiameter() / getIconDivisor()) + 2;
+      double[] view = getViewport(g2, margin);
+      double[] lineView = getViewport(g2, 2);
+      g2.setStroke(Drawable.thin);
+      line.query(lineView[0], lineView[1], lineView[2], lineView[3], (from, to) -> {
+        for (int ii = from; ii < to && ii + 1 < line.size(); ii++) {
+          // Note: a POLYCLOSE marker is indexed at the location of the first Stanchion in its chain
+          MarkerType next = markers.get(ii + 1).type;
+          boolean closes = next == MarkerType.POLYCLOSE && ii > 0 && markers.get(ii - 1).type == MarkerType.POLY;
+          if (markers.get(ii).type == MarkerType.POLY && (next == MarkerType.POLY || closes) &&
+              PolylineIndex.mayCross(line.getX(ii), line.getY(ii), line.getX(ii + 1), line.getY(ii + 1), lineView[0], lineView[1], lineView[2], lineView[3])) {
+            g2.setColor(markers.get(next == MarkerType.POLY ? ii + 1 : ii).color);
+            drawWorldLine(g2, line.getX(ii), line.getY(ii), line.getX(ii + 1), line.getY(ii + 1));
+          }
+        }
+      });
+      line.query(view[0], view[1], view[2], view[3], (from, to) -> {
+        for (int ii = from; ii < to; ii++) {
+          if (inside(line.getX(ii), line.getY(ii), view)) {
+            markers.get(ii).doDraw(this, g2);
+          }
+        }
+      });
+    }
+
+    // Note: only waypoints, and waypoint lines, which intersect the area being drawn are drawn
+    private void drawWayLayer (Graphics2D g2) {
+      setupGraphics(g2);
+      WaypointStore wayStore = markSet.wayStore;
+      PolylineIndex line = markSet.getWayLine();
+      if (showWayLines) {
+        double[] lineView = getViewport(g2, 2);
+        g2.setColor(Color.WHITE);
+        g2.setStroke(Drawable.thin);
+        double[] px = new double[PolylineIndex.runSize + 1], py = new double[PolylineIndex.runSize + 1];
+        line.query(lineView[0], lineView[1], lineView[2], lineView[3], (from, to) -> {
+          // Convert the run, plus the first point of the next run, to window coordinates
+          int count = Math.min(to + 1, line.size()) - from;
+          worldToPixel(line.getXs(), from, px, 0, count, worldScale, winX);
+          worldToPixel(line.getYs(), from, py, 0, count, worldScale, winY);
+          for (int ii = 0; ii < count - 1; ii++) {
+            int jj = from + ii;
+            if (PolylineIndex.mayCross(line.getX(jj), line.getY(jj), line.getX(jj + 1), line.getY(jj + 1), lineView[0], lineView[1], lineView[2], lineView[3])) {
+              g2.drawLine((int) Math.floor(px[ii]), (int) Math.floor(py[ii]), (int) Math.floor(px[ii + 1]), (int) Math.floor(py[ii + 1]));
+            }
+          }
+        });
+      }
+      // Allow for labels drawn to the right of the icon
+      int margin = (int) (Waypoint.wayDiameter / getIconDivisor()) + (showNumbers ? 100 : 2);
+      double[] view = getViewport(g2, margin);
+      Point mLoc = new Point();
+      line.query(view[0], view[1], view[2], view[3], (from, to) -> {
+        for (int ii = from; ii < to; ii++) {
+          if (inside(line.getX(ii), line.getY(ii), view)) {
+            mLoc.setLocation(toMapX(line.getX(ii)), toMapY(line.getY(ii)));
+            Waypoint.draw(this, g2, mLoc, ii + 1, wayStore.getSel(ii));
+          }
+        }
+      });
+      if (markSet.gpsReference != null) {
+        markSet.gpsReference.doDraw(this, g2);
+      }
+    }
+
+    private void drawWorldLine (Graphics2D g2, double x1, double y1, double x2, double y2) {
+      g2.drawLine(toMapX(x1), toMapY(y1), toMapX(x2), toMapY(y2));
     }
 
-
-    void saveSettings (String data) {
-      settings.setSettings(data);
-      persistSettings();
-      clearWaypoints();
+    private static boolean inside (double x, double y, double[] view) {
+      return x >= view[0] && x <= view[2] && y >= view[1] && y <= view[3];
     }
 
-    void initSettiings () {
-      byte[] tmp = prefs.getByteArray("settings", null);
-      if (tmp != null) {
-        try {
-          settings = (Settings) (new ObjectInputStream(new ByteArrayInputStream(tmp))).readObject();
-        } catch (Exception ex) {
-          prefs.remove("settings");
+    /**
+     * Cached image of one layer of the window.  A layer is only redrawn after it has been invalidated, and
+     * then only within the invalidated area.  Note: only used from the event dispatch thread.
+     */
+    private static class Layer {
+      private final int       transparency;
+      private BufferedImage   img;
+      private boolean         valid;
+      private Rectangle       dirty;
+
+      private Layer (int transparency) {
+        this.transparency = transparency;
+      }
+
+      void invalidate () {
+        valid = false;
+      }
+
+      // Note: area is in window (rotated) coordinates
+      void invalidate (Rectangle area) {
+        if (dirty == null) {
+          dirty = new Rectangle(area);
+        } else {
+          dirty.add(area);
         }
       }
-      if (settings == null){
-        resetSettings();
+
+      Image update (GraphicsConfiguration gc, Dimension win, Consumer<Graphics2D> painter) {
+        if (img == null || img.getWidth() != win.width || img.getHeight() != win.height) {
+          img = gc.createCompatibleImage(win.width, win.height, transparency);
+          valid = false;
+        }
+        Rectangle area = valid ? dirty : new Rectangle(win);
+        if (area != null) {
+          Graphics2D g2 = img.createGraphics();
+          try {
+            g2.clip(area);
+            g2.setComposite(AlphaComposite.Clear);
+            g2.fill(area);
+            g2.setComposite(AlphaComposite.SrcOver);
+            painter.accept(g2);
+          } finally {
+            g2.dispose();
+          }
+        }
+        valid = true;
+        dirty = null;
+        return img;
       }
     }
 
-    void clearWaypoints () {
-      markSet.clearWaypoints();
+    // Redraw all layers (view has moved, or changed)
+    void redraw () {
+      mapLayer.invalidate();
+      markerLayer.invalidate();
+      wayLayer.invalidate();
       repaint();
     }
 
-    void loadMap (String mapName) throws Exception {
-      setMap(GPSMap.MapSet.loadMapSet(mapName));
+    // Note: called when new map tiles have been loaded
+    private void redrawMap () {
+      mapLayer.invalidate();
+      repaint();
     }
 
-    void setMap (MapSet mapSet) {
-      this.mapSet = mapSet;
-      setTool("arrow");
-      screenRotate = prefs.getBoolean("rotate.on", false);
-      showMarkers = prefs.getBoolean("markers.on", true);
-      moveMarkers = prefs.getBoolean("move_markers.on", false);
-      showNumbers = prefs.getBoolean("numbers.on", false);
-      showSettings = prefs.getBoolean("settings.on", false);
-      showWayLines = prefs.getBoolean("waylines.on", true);
-      markSet = MarkSet.load(mapSet.name);
-      initSettiings();
-      gpsTileMap.runStop.setEnabled(markSet.simCar != null);
+    void redrawMarkers () {
+      markerLayer.invalidate();
       repaint();
     }
 
-    void saveMarkers () {
-      if (markSet != null){
-        markSet.save();
-      }
+    void redrawWaypoints () {
+      wayLayer.invalidate();
+      repaint();
     }
 
-    public void paint (Graphics g) {
-      win = getSize();
-      if (offScr == null  ||  (lastWin != null  &&  (win.width != lastWin.width  ||  win.height != lastWin.height))) {
-        offScr = createImage(win.width, win.height);
+    // Redraw part of the layer an item is drawn in (the car is not in a layer)
+    private void redrawItem (Drawable item, Rectangle bounds) {
+      Layer layer = item instanceof Waypoint || item instanceof GPSReference ? wayLayer : item instanceof Marker ? markerLayer : null;
+      if (layer != null) {
+        layer.invalidate(toWindow(bounds));
       }
-      lastWin = win;
-      Graphics2D g2 = (Graphics2D) offScr.getGraphics();
+      repaintMap(bounds);
+    }
+
+    // Convert unrotated bounds to window coordinates
+    private Rectangle toWindow (Rectangle bounds) {
       if (screenRotate) {
-        g2.rotate(Math.toRadians(180));
-        g2.translate(-win.width, -win.height);
+        Dimension size = getSize();
+        return new Rectangle(size.width - bounds.x - bounds.width, size.height - bounds.y - bounds.height, bounds.width, bounds.height);
       }
-      g2.setBackground(getBackground());
-      if (mapSet != null) {
-        g2.setRenderingHints(new RenderingHints(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON));
-        g2.drawImage(mapSet.getMap(zoom), 0, 0, win.width, win.height, offX, offY, offX + win.width, offY + win.height, this);
-        if (markSet != null) {
-          if (showMarkers) {
-            // Draw objects on Map
-            Object[] ret = null;
-            for (Marker mrk : markSet.markers) {
-              ret = mrk.doDraw(this, g2, ret);
-            }
-          }
-          // Draw waypoints on Map
-          int num = 1;
-          Object[] ret = null;
-          for (Waypoint way : markSet.waypoints) {
-            ret = way.doDraw(this, g2, way, num++, ret);
-          }
-          if (markSet.gpsReference != null) {
-            markSet.gpsReference.doDraw(this, g2, ret);
-          }
-          if (markSet.simCar != null) {
-            markSet.simCar.doDraw(this, g2);
-          }
+      return bounds;
+    }
+
+    /**
+     * Repaint only part of the window
+     * @param bounds area to repaint (in unrotated window coordinates)
+     */
+    void repaintMap (Rectangle bounds) {
+      repaint(toWindow(bounds));
+    }
+
+    // Area which needs to be redrawn when an item moves, including the lines which connect it to its neighbors
+    Rectangle getDirtyBounds (Drawable item) {
+      Rectangle bounds = item.getBounds(this);
+      if (bounds == null) {
+        return new Rectangle(getSize());
+      }
+      if (item instanceof Waypoint && showWayLines) {
+        int idx = ((Waypoint) item).index;
+        PolylineIndex line = markSet.getWayLine();
+        if (idx > 0) {
+          bounds.add(toMapX(line.getX(idx - 1)), toMapY(line.getY(idx - 1)));
+        }
+        if (idx >= 0 && idx < line.size() - 1) {
+          bounds.add(toMapX(line.getX(idx + 1)), toMapY(line.getY(idx + 1)));
+        }
+      } else if (item instanceof Marker && ((Marker) item).type == MarkerType.POLY) {
+        // Note: Stanchion chain may be closed, so include every Stanchion in the chain
+        List<Marker> markers = markSet.markers;
+        int idx = markers.indexOf(item);
+        for (int ii = idx - 1; ii >= 0 && markers.get(ii).type == MarkerType.POLY; ii--) {
+          bounds.add(markers.get(ii).getMapLoc(this));
+        }
+        for (int ii = idx + 1; ii > 0 && ii < markers.size() && markers.get(ii).type == MarkerType.POLY; ii++) {
+          bounds.add(markers.get(ii).getMapLoc(this));
         }
       }
-      if (tapeStart != null  &&  tapeEnd != null) {
-        g2.setColor(Color.WHITE);
-        g2.drawLine(tapeStart.x, tapeStart.y, tapeEnd.x, tapeEnd.y);
+      bounds.grow(2, 2);
+      return bounds;
+    }
+
+    private Rectangle getTapeBounds () {
+      Rectangle bounds = new Rectangle(tapeStart);
+      if (tapeEnd != null) {
+        bounds.add(tapeEnd);
       }
-      g.drawImage(offScr, 0, 0, this);
+      bounds.grow(2, 2);
+      return bounds;
     }
 
     String[] getUploadData () {
@@ -1488,20 +3145,15 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       }
       // Send coords to car
       int num = 0;
-      for (GPSMap.Waypoint way : markSet.waypoints) {
+      for (int ii = 0; ii < markSet.wayStore.size(); ii++) {
         check = 0;
-        int lat = toFixed(way.loc.lat);
-        int lon = toFixed(way.loc.lon);
+        int lat = toFixed(markSet.wayStore.getLat(ii));
+        int lon = toFixed(markSet.wayStore.getLon(ii));
         buf = new StringBuilder("$");
         buf.append(toHexByte(num, 2));
         buf.append(toHexByte(lat, 8));
         buf.append(toHexByte(lon, 8));
-        int tmp = settings.getCode(way.sel) & 0x0F;
-        tmp |= (way.heading & 0x1FF) << 4;
-        tmp |= way.avoidBarrels ? 0x8000 : 0;
-        tmp |= way.jumpRamp ? 0x4000 : 0;
-        tmp |= way.raiseFlag ? 0x2000 : 0;
-        buf.append(toHexByte(tmp, 4));
+        buf.append(toHexByte(markSet.getCommand(ii, settings), 4));
         buf.append(toHexByte(check, 2));
         buf.append("\n\r");
         lines.add(buf.toString());
@@ -1571,6 +3223,50 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       return rad / (Math.PI / 180.0);
     }
 
+    /*
+     *  Batch versions of the conversions above, which convert count values from src[srcPos] to dst[dstPos]
+     *  (src and dst may be the same array).  Loops are kept free of calls (other than Math intrinsics),
+     *  branches and allocation so the JIT can unroll them and, for the linear conversions, vectorize them.
+     */
+
+    static void lonToWorldX (double[] src, int srcPos, double[] dst, int dstPos, int count) {
+      for (int ii = 0; ii < count; ii++) {
+        dst[dstPos + ii] = originX + src[srcPos + ii] * pixelsPerLonDegree;
+      }
+    }
+
+    static void latToWorldY (double[] src, int srcPos, double[] dst, int dstPos, int count) {
+      final double toRadians = Math.PI / 180.0;
+      for (int ii = 0; ii < count; ii++) {
+        double sinY = Math.sin(src[srcPos + ii] * toRadians);
+        dst[dstPos + ii] = originY + 0.5 * Math.log((1.0 + sinY) / (1.0 - sinY)) * -pixelsPerLonRadian;
+      }
+    }
+
+    static void worldXToLon (double[] src, int srcPos, double[] dst, int dstPos, int count) {
+      for (int ii = 0; ii < count; ii++) {
+        dst[dstPos + ii] = (src[srcPos + ii] - originX) / pixelsPerLonDegree;
+      }
+    }
+
+    static void worldYToLat (double[] src, int srcPos, double[] dst, int dstPos, int count) {
+      final double toDegrees = 180.0 / Math.PI;
+      for (int ii = 0; ii < count; ii++) {
+        double latRadians = (src[srcPos + ii] - originY) / -pixelsPerLonRadian;
+        dst[dstPos + ii] = (2.0 * Math.atan(Math.exp(latRadians)) - Math.PI / 2) * toDegrees;
+      }
+    }
+
+    /**
+     * Convert world coordinates to pixel coordinates (for a window, pass scale = worldScale and offset = winX,
+     * or winY)
+     */
+    static void worldToPixel (double[] src, int srcPos, double[] dst, int dstPos, int count, double scale, double offset) {
+      for (int ii = 0; ii < count; ii++) {
+        dst[dstPos + ii] = src[srcPos + ii] * scale - offset;
+      }
+    }
+
     private static Point lonLanToPixel (LonLat loc, int zoom) {
       double numTiles = 1 << zoom;
       return new Point((int) (lonToWorldX(loc.lon) * numTiles), (int) (latToWorldY(loc.lat) * numTiles));
@@ -1581,12 +3277,19 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       return new LonLat(worldXToLon((double) pLoc.x / numTiles), worldYToLat((double) pLoc.y / numTiles));
     }
 
-    private static Point.Double lonLatToWorld (LonLat loc) {
-      return new Point.Double(lonToWorldX(loc.lon), latToWorldY(loc.lat));
+    /**
+     * Build the Google Static Maps request parameters for a satellite image tile centered on loc.
+     * Note: also used as the key for TileCache and can be called from download threads
+     */
+    private static String getTileParams (LonLat loc, int zoom) {
+      synchronized (lonLatFmt) {
+        return "center=" + lonLatFmt.format(loc.lat) + "," + lonLatFmt.format(loc.lon) + "&zoom=" + zoom +
+               "&size=" + imgTileSize + "x" + imgTileSize + "&maptype=satellite";
+      }
     }
 
-    private static LonLat worldToLonLat (Point.Double wLoc) {
-      return new LonLat(worldXToLon(wLoc.x), worldYToLat(wLoc.y));
+    private static Point.Double lonLatToWorld (LonLat loc) {
+      return new Point.Double(lonToWorldX(loc.lon), latToWorldY(loc.lat));
     }
 
     /**
@@ -1611,6 +3314,14 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       // Note: 1 kilometer is 3280.84 feet
       return distanceInKilometers(loc1, loc2) * 3280.84;
     }
+
+    /**
+     * Scale of World Units at a latitude (for converting SimCar distances)
+     * @return feet per World Unit
+     */
+    static double feetPerWorldUnit (double lat) {
+      return Math.toRadians(1) * 6371 * 3280.84 * Math.cos(degreesToRadians(lat)) / pixelsPerLonDegree;
+    }
   }
 
   public static void main (String[] args) {
@@ -1674,44 +3385,60 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
     }
   }
 
+  /**
+   * Drive the simulated car in real time with simEngine, then show the car where it stopped
+   */
   public void run () {
-    if (gpsMap.markSet.waypoints.size() < 1) {
-      showErrorDialog("Must set at least one waypoint!");
-      return;
-    }
+    SimEngine engine = simEngine;
+    boolean failed = true;
     try {
-      GPSMap.MarkSet markSet = gpsMap.markSet;
-      boolean nextWayPoint = false;
-      while (simRun || markSet.simCar.speed > 0) {
-        // Update waypoint positions (allows user to move Waypoints while sim runs)
-        LonLat[] locWays = new LonLat[markSet.waypoints.size() + 1];
-        locWays[0] = markSet.simCar.loc;
-        int ii = 1;
-        for (GPSTileMap.GPSMap.Waypoint wPnt : markSet.waypoints) {
-          locWays[ii++] = wPnt.loc;
-        }
-        if (nextWayPoint && simRun) {
-          // Check if we've reached last waypoint
-          if (++markSet.simCar.wayIdx >= locWays.length) {
-            simRun = false;
-            markSet.simCar.wayIdx = locWays.length - 1;
-          }
+      AtomicBoolean pending = new AtomicBoolean();
+      engine.runRealTime(() -> {
+        // Note: only one update is queued at a time, so a busy EDT skips frames, rather than falling behind
+        if (pending.compareAndSet(false, true)) {
+          SwingUtilities.invokeLater(() -> {
+            pending.set(false);
+            showSimCar(engine.getLatest());
+          });
         }
-        LonLat prevLoc = markSet.simCar.loc.copy();
-        // Drive autonomous
-        nextWayPoint = markSet.simCar.doMove(locWays[markSet.simCar.wayIdx], locWays[markSet.simCar.wayIdx - 1], simRun);
-        LonLat nextLoc = markSet.simCar.loc.copy();
-        // Calculate distance moved (in feet)
-        double feet = GPSMap.distanceInFeet(prevLoc, nextLoc);
-        gpsMap.toolInfo.setText("" + GPSMap.feetFmt.format(feet * 50) + " feet/sec");
-        // Update screen and wait for next animation tick
-        repaint();
-        Thread.sleep(20);   // ~50 fps
-      }
-      runStop.setText("RUN");
-      tabs.setEnabledAt(1, true);
+      });
+      failed = false;
     } catch (Exception ex) {
       ex.printStackTrace(System.out);
+    } finally {
+      boolean restart = !failed;
+      SwingUtilities.invokeLater(() -> {
+        showSimCar(engine.getLatest());
+        if (simEngine == engine) {
+          if (restart && engine.isRunning()) {
+            // Note: RUN was pressed as the car stopped, after runRealTime() had returned
+            (new Thread(this, "SimEngine")).start();
+          } else {
+            simEngine = null;
+            runStop.setText("RUN");
+            tabs.setEnabledAt(1, true);
+          }
+        }
+      });
+    }
+  }
+
+  private void showSimCar (SimEngine.Sample sample) {
+    GPSMap.SimCar simCar = gpsMap.markSet.simCar;
+    if (simCar != null) {
+      LonLat prevLoc = simCar.loc;
+      Rectangle dirty = gpsMap.getDirtyBounds(simCar);
+      simCar.setState(sample);
+      // Calculate speed (in feet/sec) from the distance moved since the last sample
+      double secs = (sample.tick - shownTick) * (SimEngine.tickNanos / 1e9);
+      if (secs > 0) {
+        double feet = GPSMap.distanceInFeet(prevLoc, sample.loc);
+        gpsMap.toolInfo.setText("" + GPSMap.feetFmt.format(feet / secs) + " feet/sec" +
+                                (sample.hits > 0 ? ", " + sample.hits + " obstacles hit" : ""));
+      }
+      shownTick = sample.tick;
+      dirty.add(gpsMap.getDirtyBounds(simCar));
+      gpsMap.repaintMap(dirty);
     }
   }
 
@@ -1754,6 +3481,7 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
         throw new IllegalStateException("Unable to create directory " + userDir);
       }
     }
+    tileCache = new TileCache(new File(uDir, "tiles"), prefs.getInt("tilecache.mb", 512) * 1024L * 1024L);
     //System.out.println("" + Math.abs(GPSMap.lonToWorldX(-0.5) - GPSMap.lonToWorldX(0.5)));
     //System.out.println("" + Math.abs(GPSMap.latToWorldY(-0.5) - GPSMap.latToWorldY(0.5)));
     setBackground(Color.white);
@@ -1766,13 +3494,25 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
     runStop.setToolTipText("Run/Stop Simulation");
     runStop.addActionListener((ev) -> {
       if ("RUN".equals(runStop.getText())) {
+        if (gpsMap.markSet.getWaypointCount() < 1) {
+          showErrorDialog("Must set at least one waypoint!");
+          return;
+        }
         runStop.setText("STOP");
-        simRun = true;
         tabs.setEnabledAt(1, false);
-        (new Thread(this)).start();
+        if (simEngine != null) {
+          // Car is still braking from the last run (run() restarts the engine if it has just stopped)
+          simEngine.setThrottle(true);
+        } else {
+          simEngine = new SimEngine(gpsMap.markSet.simCar.copy(), gpsMap.markSet.getLiveRoute());
+          simEngine.setObstacles(gpsMap.markSet.getObstacles());
+          simEngine.setThrottle(true);
+          shownTick = 0;
+          (new Thread(this, "SimEngine")).start();
+        }
       } else {
         runStop.setText("RUN");
-        simRun = false;
+        simEngine.setThrottle(false);
         tabs.setEnabledAt(1, true);
       }
     });
@@ -1807,7 +3547,8 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       // Load Map
       try {
         gpsMap.loadMap(map);
-        toolInfo.setText("Declination: " + declinationFmt.format(gpsMap.mapSet.getDeclination()) + " degrees");
+        if (gpsMap.mapSet != null)
+          toolInfo.setText("Declination: " + declinationFmt.format(gpsMap.mapSet.getDeclination()) + " degrees");
       } catch (Exception ex) {
         prefs.remove("default.map");
       }
@@ -1867,9 +3608,27 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       fileMenu.add(mItem);
       mItem.addActionListener(this);
     }
+    // Setup "Edit" menu
+    editMenu = new JMenu("Edit");
+    JMenuItem undo = new JMenuItem("Undo");
+    JMenuItem redo = new JMenuItem("Redo");
+    int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+    undo.setAccelerator(KeyStroke.getKeyStroke(UNDO_KEY, shortcut));
+    redo.setAccelerator(KeyStroke.getKeyStroke(UNDO_KEY, shortcut | InputEvent.SHIFT_DOWN_MASK));
+    undo.addActionListener(ev -> gpsMap.undo());
+    redo.addActionListener(ev -> gpsMap.redo());
+    undo.setEnabled(false);
+    redo.setEnabled(false);
+    gpsMap.history.setListener(() -> {
+      undo.setEnabled(gpsMap.history.canUndo());
+      redo.setEnabled(gpsMap.history.canRedo());
+    });
+    editMenu.add(undo);
+    editMenu.add(redo);
+    menuBar.add(editMenu);
     // Setup "Zoom" scale menu
     zoomMenu = new JMenu("Zoom");
-    for (int ii = GPSMap.BaseZoom; ii <= GPSMap.MaxZoom; ii++) {
+    for (int ii = GPSMap.MinZoom; ii <= GPSMap.MaxViewZoom; ii++) {
       JRadioButtonMenuItem item = new JRadioButtonMenuItem("" + ii, ii == gpsMap.zoom);
       zoomMenu.add(item);
       zoomGroup.add(item);
@@ -1877,7 +3636,7 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
         JRadioButtonMenuItem item1 = (JRadioButtonMenuItem) e.getItem();
         if (item1.isSelected()) {
           gpsMap.changeZoom(Integer.parseInt(item1.getText()));
-          gpsMap.repaint();
+          gpsMap.redraw();
         }
       });
     }
@@ -1895,12 +3654,60 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       }
     });
     optMenu.add(editKey);
+    // Add Set Download Threads item
+    JMenuItem threads = new JMenuItem("Set Download Threads");
+    threads.addActionListener(ev -> {
+      String res = (String) JOptionPane.showInputDialog(gpsMap, "Number of simultaneous tile downloads", "Download Threads",
+                  JOptionPane.PLAIN_MESSAGE, null, null, Integer.toString(prefs.getInt("download.threads", 8)));
+      if (res != null) {
+        try {
+          prefs.putInt("download.threads", Math.max(1, Integer.parseInt(res.trim())));
+        } catch (Exception ex) {
+          showErrorDialog("Invalid thread count: " + res);
+        }
+      }
+    });
+    optMenu.add(threads);
+    // Add Set Tile Cache Size item
+    JMenuItem cacheSize = new JMenuItem("Set Tile Cache Size");
+    cacheSize.addActionListener(ev -> {
+      String res = (String) JOptionPane.showInputDialog(gpsMap, "Tile cache size in MB (" + (tileCache.getSize() >> 20) +
+                  " MB used)", "Tile Cache", JOptionPane.PLAIN_MESSAGE, null, null, Integer.toString(prefs.getInt("tilecache.mb", 512)));
+      if (res != null) {
+        try {
+          int mb = Math.max(0, Integer.parseInt(res.trim()));
+          prefs.putInt("tilecache.mb", mb);
+          tileCache.setMaxBytes(mb * 1024L * 1024L);
+          tileCache.flush();
+        } catch (Exception ex) {
+          showErrorDialog("Invalid cache size: " + res);
+        }
+      }
+    });
+    optMenu.add(cacheSize);
+    // Add Set Tile Memory Budget item
+    JMenuItem tileMem = new JMenuItem("Set Tile Memory Budget");
+    tileMem.addActionListener(ev -> {
+      Object[] message = {gpsMap.tileImages.getStats(), "Memory for decoded map tiles (MB):"};
+      String res = (String) JOptionPane.showInputDialog(gpsMap, message, "Tile Memory", JOptionPane.PLAIN_MESSAGE,
+                  null, null, Integer.toString(prefs.getInt("tilemem.mb", 64)));
+      if (res != null) {
+        try {
+          int mb = Math.max(1, Integer.parseInt(res.trim()));
+          prefs.putInt("tilemem.mb", mb);
+          gpsMap.tileImages.setMaxBytes(mb * 1024L * 1024L);
+        } catch (Exception ex) {
+          showErrorDialog("Invalid memory budget: " + res);
+        }
+      }
+    });
+    optMenu.add(tileMem);
     // Add Rotate Map item
     JCheckBoxMenuItem rotation = new JCheckBoxMenuItem("Rotate Map 180", prefs.getBoolean("rotate.on", false));
     rotation.addActionListener(ev -> {
       boolean selected = ((AbstractButton) ev.getSource()).getModel().isSelected();
       gpsMap.screenRotate = selected;
-      gpsMap.repaint();
+      gpsMap.redraw();
       prefs.putBoolean("rotate.on", selected);
     });
     optMenu.add(rotation);
@@ -1928,7 +3735,7 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       boolean selected = ((AbstractButton) ev.getSource()).getModel().isSelected();
       gpsMap.showNumbers = selected;
       prefs.putBoolean("numbers.on", selected);
-      gpsMap.repaint();
+      gpsMap.redrawWaypoints();
     });
     optMenu.add(numbers);
     // Add Show Waypoint Setting item
@@ -1937,7 +3744,7 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       boolean selected = ((AbstractButton) ev.getSource()).getModel().isSelected();
       gpsMap.showSettings = selected;
       prefs.putBoolean("settings.on", selected);
-      gpsMap.repaint();
+      gpsMap.redrawWaypoints();
     });
     optMenu.add(setting);
     // Add Show Waypoint Lines item
@@ -1946,15 +3753,14 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       boolean selected = ((AbstractButton) ev.getSource()).getModel().isSelected();
       gpsMap.showWayLines = selected;
       prefs.putBoolean("waylines.on", selected);
-      gpsMap.repaint();
+      gpsMap.redrawWaypoints();
     });
     optMenu.add(wayLines);
     // Add Reset Obstacle Markers item
     JMenuItem resetObj = new JMenuItem("Reset Markers");
     resetObj.addActionListener(ev -> {
       if (showWarningDialog("Reloading Markers will reset any changes you have made.  OK?")) {
-        gpsMap.markSet.resetMarkers();
-        repaint();
+        gpsMap.resetMarkers();
       }
     });
     optMenu.add(resetObj);
@@ -1964,15 +3770,15 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       if (showWarningDialog("Loading Markers will discard current set.  OK?")) {
         fc.setSelectedFile(new File(prefs.get("default.dir", "/")));
         if (fc.showOpenDialog(gpsMap) == JFileChooser.APPROVE_OPTION) {
-          try {
-            File tFile = fc.getSelectedFile();
-            String tmp = getFile(tFile);
-            gpsMap.markSet.loadMarkers(tmp);
+          File tFile = fc.getSelectedFile();
+          try (CsvReader in = new CsvReader(tFile)) {
+            gpsMap.loadMarkers(in);
           } catch (IOException ex) {
             ex.printStackTrace(System.out);
+            showErrorDialog("Unable to load markers from " + tFile.getName() + ": " + ex.getMessage());
           }
         }
-        repaint();
+        gpsMap.redrawMarkers();
       }
     });
     optMenu.add(loadObj);
@@ -1982,12 +3788,13 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       fc.setSelectedFile(new File(prefs.get("default.dir", "/")));
       if (fc.showSaveDialog(gpsMap) == JFileChooser.APPROVE_OPTION) {
         File sFile = fc.getSelectedFile();
-        if (sFile.exists()) {
-          if (showWarningDialog("Overwrite Existing file?")) {
-            gpsMap.markSet.saveMarkers(sFile);
+        if (!sFile.exists() || showWarningDialog("Overwrite Existing file?")) {
+          try (CsvWriter out = new CsvWriter(sFile)) {
+            gpsMap.markSet.saveMarkers(out);
+          } catch (IOException ex) {
+            ex.printStackTrace(System.out);
+            showErrorDialog("Unable to save markers to " + sFile.getName() + ": " + ex.getMessage());
           }
-        } else {
-          gpsMap.markSet.saveMarkers(sFile);
         }
         prefs.put("default.dir", sFile.getAbsolutePath());
       }
@@ -2019,12 +3826,13 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
       fc.setSelectedFile(new File(prefs.get("default.dir", "/")));
       if (fc.showSaveDialog(gpsMap) == JFileChooser.APPROVE_OPTION) {
         File sFile = fc.getSelectedFile();
-        if (sFile.exists()) {
-          if (showWarningDialog("Overwrite Existing file?")) {
-            saveFile(sFile, gpsMap.markSet.getCsvCoords(gpsMap.settings));
+        if (!sFile.exists() || showWarningDialog("Overwrite Existing file?")) {
+          try (CsvWriter out = new CsvWriter(sFile)) {
+            gpsMap.markSet.saveWaypoints(out, gpsMap.settings);
+          } catch (IOException ex) {
+            ex.printStackTrace(System.out);
+            showErrorDialog("Unable to save waypoints to " + sFile.getName() + ": " + ex.getMessage());
           }
-        } else {
-          saveFile(sFile, gpsMap.markSet.getCsvCoords(gpsMap.settings));
         }
         prefs.put("default.dir", sFile.getAbsolutePath());
       }
@@ -2035,14 +3843,28 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
     mItem4.addActionListener(ev -> {
       fc.setSelectedFile(new File(prefs.get("default.dir", "/")));
       if (fc.showOpenDialog(gpsMap) == JFileChooser.APPROVE_OPTION) {
-        try {
-          File tFile = fc.getSelectedFile();
-          String tmp = getFile(tFile);
-          gpsMap.markSet.loadWaypoints(tmp, gpsMap.settings);
-          repaint();
+        File tFile = fc.getSelectedFile();
+        try (CsvReader in = new CsvReader(tFile)) {
+          gpsMap.loadWaypoints(in);
         } catch (IOException ex) {
           ex.printStackTrace(System.out);
+          showErrorDialog("Unable to load waypoints from " + tFile.getName() + ": " + ex.getMessage());
+        }
+      }
+    });
+    // Add Import GPX/KML Track item
+    JMenuItem importTrack = new JMenuItem("Import GPX/KML Track...");
+    waypointMenu.add(importTrack);
+    importTrack.addActionListener(ev -> {
+      fc.setSelectedFile(new File(prefs.get("default.dir", "/")));
+      if (fc.showOpenDialog(gpsMap) == JFileChooser.APPROVE_OPTION) {
+        File tFile = fc.getSelectedFile();
+        TrackImporter.Simplifier simplifier = getSimplifier();
+        if (simplifier != null) {
+          importTrack.setEnabled(false);
+          gpsMap.importTrack(tFile, simplifier, () -> importTrack.setEnabled(true));
         }
+        prefs.put("default.dir", tFile.getAbsolutePath());
       }
     });
     // Add Waypoints Report item
@@ -2051,18 +3873,12 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
     mItem5.addActionListener(ev -> {
       JTextArea textArea = new JTextArea(12, 36);
       StringBuilder buf = new StringBuilder();
-      GPSMap.Waypoint lastWay = null;
-      int ii = 1;
       double total = 0;
-      for (GPSMap.Waypoint way : gpsMap.markSet.waypoints) {
-        if (lastWay != null) {
-            double feet = GPSMap.distanceInFeet(lastWay.loc, way.loc);
-            total += feet;
-            buf.append("Distance from waypoint ").append(ii).append(" to waypoint ").append(ii + 1).
-                append(" is ").append(GPSMap.feetFmt.format(feet)).append(" feet\n");
-            ii++;
-        }
-        lastWay = way;
+      for (int ii = 1; ii < gpsMap.markSet.getWaypointCount(); ii++) {
+        double feet = GPSMap.distanceInFeet(gpsMap.markSet.getWaypointLoc(ii - 1), gpsMap.markSet.getWaypointLoc(ii));
+        total += feet;
+        buf.append("Distance from waypoint ").append(ii).append(" to waypoint ").append(ii + 1).
+            append(" is ").append(GPSMap.feetFmt.format(feet)).append(" feet\n");
       }
       buf.append("total distance ").append(GPSMap.feetFmt.format(total)).append(" feet\n");
       textArea.setText(buf.toString());
@@ -2109,6 +3925,14 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
         }
       }
     });
+    // Add Parameter Sweep item
+    JMenuItem sweep = new JMenuItem("Parameter Sweep...");
+    settingsMenu.add(sweep);
+    sweep.addActionListener(ev -> runSweep(sweep));
+    // Add Simulate Heat item
+    JMenuItem heat = new JMenuItem("Simulate Heat...");
+    settingsMenu.add(heat);
+    heat.addActionListener(ev -> runHeat(heat));
     // Add Default Settings submenu
     JMenu subMenu = new JMenu("Default Setting");
     ButtonGroup group = new ButtonGroup();
@@ -2168,8 +3992,17 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
         }
       }
       if (gpsMap.markSet != null) {
-        gpsMap.markSet.save();
+        try {
+          gpsMap.markSet.save();
+          gpsMap.markSet.closeJournal();
+        } catch (IOException ex) {
+          ex.printStackTrace(System.out);
+        }
+      }
+      if (gpsMap.mapSet != null) {
+        gpsMap.mapSet.close();
       }
+      tileCache.flush();
       try {
         prefs.flush();
       } catch (BackingStoreException ex) {
@@ -2285,26 +4118,6 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
     return portMenu;
   }
   
-  private static String getFile (File file) throws IOException {
-   FileInputStream fis = new FileInputStream(file);
-   byte[] data = new byte[fis.available()];
-   if (fis.read(data) != data.length) {
-     throw new FileSystemException("Insufficient data");
-   }
-   fis.close();
-   return new String(data, StandardCharsets.UTF_8);
-  }
-  
-  private static void saveFile (File file, String text) {
-    try {
-      FileOutputStream out = new FileOutputStream(file);
-      out.write(text.getBytes(StandardCharsets.UTF_8));
-      out.close();
-    } catch (IOException ex) {
-      ex.printStackTrace(System.out);
-    }
-  }
-
   public void actionPerformed (ActionEvent ev) {
     String cmd = ev.getActionCommand();
     try {
@@ -2346,39 +4159,15 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
               int zoom = GPSMap.MaxZoom;
               GPSMap.MapSet mapSet = new GPSMap.MapSet(name, new LonLat(toDouble(lon.getText()), toDouble(lat.getText())));
               // Build Fully Zoomed Map image from Google Static Maps image tiles (other built by scaling down this image)
-              int totalTiles = (mapWidth / tileSize) * (mapHeight / tileSize);
-              int tileCount = 0;
-              List<BufferedImage> tmp = new ArrayList<>();
-              for (int xx = 0; xx < mapWidth; xx += tileSize) {
-                for (int yy = 0; yy < mapHeight; yy += tileSize) {
-                  Point pLoc = new Point(mapSet.mapLoc[2].x + xx + 256 - mapWidth / 2, mapSet.mapLoc[2].y + yy + 256 - mapHeight / 2);
-                  LonLat loc = GPSMap.pixelToLonLat(pLoc,  zoom);
-                  try {
-                    String url = "http://maps.googleapis.com/maps/api/staticmap?center=" +
-                                  GPSMap.lonLatFmt.format(loc.lat) + "," + GPSMap.lonLatFmt.format(loc.lon) + "&zoom=" + (zoom) +
-                                  "&size=512x512&sensor=false&maptype=satellite" + (mapKey != null ? "&key=" + mapKey : "");
-                    tileCount++;
-                    int percent = (int) (((double) tileCount / (double) totalTiles) * 99);
-                    publish(percent);
-                    tmp.add(ImageIO.read(new URL(url)));
-                  } catch (Exception ex) {
-                    ex.printStackTrace(System.out);
-                  }
-                }
-              }
-              BufferedImage[] mapImages = tmp.toArray(new BufferedImage[0]);
               BufferedImage mapScr = new BufferedImage(mapWidth, mapHeight, BufferedImage.TYPE_INT_RGB);
               Graphics2D g1 = (Graphics2D) mapScr.getGraphics();
-              int idx = 0;
-              for (int xx = 0; xx < mapWidth; xx += tileSize) {
-                for (int yy = 0; yy < mapHeight; yy += tileSize) {
-                  if (idx < mapImages.length) {
-                    g1.drawImage(mapImages[idx++], xx, yy, null);
-                  }
-                }
-              }
+              TileDownloader loader = new TileDownloader(prefs.getInt("download.threads", 8), 3, 500, tileCache);
+              loader.download(mapWidth / tileSize, mapHeight / tileSize, mapSet.getImageSource(zoom), (col, row, tile) -> g1.drawImage(tile, col * tileSize, row * tileSize, null),
+                 (done, total) -> publish((int) (((double) done / (double) total) * 79)));
+              g1.dispose();
               mapSet.maps[2] = mapScr;
-              mapSet.saveMapSet();
+              // Build other zoom levels from the fully zoomed image and save them all
+              mapSet.saveMapSet(percent -> publish(80 + percent * 19 / 100));
               publish(100);
               return mapSet;
             }
@@ -2391,9 +4180,14 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
                 gpsMap.setMap(mapSet);
                 gpsMap.saveMarkers();
                 prefs.put("default.map", mapSet.name);
-              } catch (Exception ex) {
+              } catch (CancellationException ex) {
+                // User cancelled download
+              } catch (ExecutionException ex) {
                 // This is thrown if we throw an exception from doInBackground.
                 ex.printStackTrace(System.out);
+                showErrorDialog("Unable to create map: " + ex.getCause().getMessage());
+              } catch (Exception ex) {
+                ex.printStackTrace(System.out);
               } finally {
                 pbar.close();
               }
@@ -2414,8 +4208,8 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
           showErrorDialog("Must specify all parameters!");
         }
       } else if ("Rescan Ports".equals(cmd)) {
-        menuBar.remove(3);
-        menuBar.add(buildPortsMenu(this), 3);
+        menuBar.remove(4);
+        menuBar.add(buildPortsMenu(this), 4);
         menuBar.validate();
       } else {
         System.out.println(cmd);
@@ -2425,6 +4219,20 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
     }
   }
   
+  // Select item in Zoom menu matching the map's zoom level, or none if the zoom level is fractional
+  private void updateZoomMenu () {
+    for (Enumeration<AbstractButton> items = zoomGroup.getElements(); items.hasMoreElements(); ) {
+      AbstractButton item = items.nextElement();
+      if (Integer.parseInt(item.getText()) == gpsMap.zoom) {
+        if (!item.isSelected()) {
+          item.setSelected(true);
+        }
+        return;
+      }
+    }
+    zoomGroup.clearSelection();
+  }
+
   private boolean notEmpty (String val) {
     return val != null  &&  val.length() > 0;
   }
@@ -2437,6 +4245,237 @@ public class GPSTileMap extends JFrame implements ActionListener, Runnable {
     }
   }
   
+  /**
+   * Drive the route with the simulated car many times (see SimSweep), varying its driving parameters
+   * around their current values, and show the best parameters found
+   */
+  private void runSweep (JMenuItem item) {
+    GPSMap.SimCar simCar = gpsMap.markSet.simCar;
+    if (simCar == null || gpsMap.markSet.getWaypointCount() < 1) {
+      showErrorDialog("Must place the car and set at least one waypoint!");
+      return;
+    }
+    JTextField runs = new JTextField(Integer.toString(prefs.getInt("sweep.runs", 2000)));
+    JTextField spread = new JTextField(Double.toString(prefs.getDouble("sweep.spread", 50)));
+    JTextField noise = new JTextField(Double.toString(prefs.getDouble("sweep.noise", 3)));
+    JTextField miss = new JTextField(Double.toString(prefs.getDouble("sweep.miss", 5)));
+    Object[][] message = {{"Number of runs", runs}, {"Parameter spread (+/- %)", spread}, {"GPS noise (feet)", noise},
+                          {"Miss radius (feet)", miss}};
+    if (JOptionPane.showConfirmDialog(this, message, "Parameter Sweep", JOptionPane.OK_CANCEL_OPTION,
+                                      JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+      return;
+    }
+    int numRuns;
+    double frac;
+    SimSweep sim = new SimSweep(simCar, gpsMap.markSet.wayStore);
+    sim.setObstacles(gpsMap.markSet.getObstacles());
+    try {
+      numRuns = Integer.parseInt(runs.getText().trim());
+      frac = Double.parseDouble(spread.getText()) / 100;
+      double gpsNoise = Double.parseDouble(noise.getText()), missRadius = Double.parseDouble(miss.getText());
+      if (numRuns < 1 || !(frac >= 0 && frac < 1) || !(gpsNoise >= 0) || !(missRadius > 0)) {
+        throw new NumberFormatException();
+      }
+      prefs.putInt("sweep.runs", numRuns);
+      prefs.putDouble("sweep.spread", frac * 100);
+      prefs.putDouble("sweep.noise", gpsNoise);
+      prefs.putDouble("sweep.miss", missRadius);
+      sim.setGpsNoise(gpsNoise);
+      sim.setMissRadius(missRadius);
+    } catch (NumberFormatException ex) {
+      showErrorDialog("Invalid value for parameter sweep");
+      return;
+    }
+    double[] vals = {simCar.getMaxSteer(), simCar.getCiRadius(), simCar.getWayRadius(), simCar.getAccel(), simCar.getMaxSpeed()};
+    for (int ii = 0; ii < vals.length; ii++) {
+      sim.setRange(ii, vals[ii] * (1 - frac), vals[ii] * (1 + frac));
+    }
+    double lat = simCar.loc.lat;
+    item.setEnabled(false);
+    Timer progress = new Timer(250, ev -> gpsMap.toolInfo.setText("Sweep: " + sim.getDone() + " of " + numRuns + " runs"));
+    progress.start();
+    new Thread(() -> {
+      long start = System.currentTimeMillis();
+      String table = null, error = null;
+      try {
+        List<SimSweep.Result> results = sim.run(numRuns, start, ForkJoinPool.commonPool());
+        table = SimSweep.getTable(results, 50, lat);
+      } catch (Exception ex) {
+        ex.printStackTrace(System.out);
+        error = ex.toString();
+      } finally {
+        String result = table, msg = error;
+        long time = System.currentTimeMillis() - start;
+        SwingUtilities.invokeLater(() -> {
+          progress.stop();
+          item.setEnabled(true);
+          if (result == null) {
+            gpsMap.toolInfo.setText("Sweep failed");
+            showErrorDialog("Parameter sweep failed" + (msg != null ? ": " + msg : ""));
+            return;
+          }
+          gpsMap.toolInfo.setText("Sweep: " + numRuns + " runs in " + time + " ms");
+          JTextArea textArea = new JTextArea(result, 24, 100);
+          textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+          textArea.setEditable(false);
+          JOptionPane.showMessageDialog(this, new JScrollPane(textArea), "Parameter Sweep Results", JOptionPane.PLAIN_MESSAGE);
+        });
+      }
+    }, "SimSweep").start();
+  }
+
+  /**
+   * Simulate a heat start: several cars lined up side by side (to the right of the simulated car, and
+   * facing the same way) each drive a route, and any contacts between them are reported
+   */
+  private void runHeat (JMenuItem item) {
+    GPSMap.SimCar simCar = gpsMap.markSet.simCar;
+    if (simCar == null || gpsMap.markSet.getWaypointCount() < 1) {
+      showErrorDialog("Must place the car and set at least one waypoint!");
+      return;
+    }
+    JTextField cars = new JTextField(Integer.toString(prefs.getInt("heat.cars", 4)));
+    JTextField spacing = new JTextField(Double.toString(prefs.getDouble("heat.spacing", 6)));
+    JTextField contact = new JTextField(Double.toString(prefs.getDouble("heat.contact", 3)));
+    Object[][] message = {{"Number of cars", cars}, {"Spacing at start (feet)", spacing}, {"Contact distance (feet)", contact}};
+    if (JOptionPane.showConfirmDialog(this, message, "Simulate Heat", JOptionPane.OK_CANCEL_OPTION,
+                                      JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+      return;
+    }
+    int numCars;
+    double space, proximity;
+    try {
+      numCars = Integer.parseInt(cars.getText().trim());
+      space = Double.parseDouble(spacing.getText());
+      proximity = Double.parseDouble(contact.getText());
+      if (numCars < 1 || !(space >= 0) || !(proximity > 0)) {
+        throw new NumberFormatException();
+      }
+      prefs.putInt("heat.cars", numCars);
+      prefs.putDouble("heat.spacing", space);
+      prefs.putDouble("heat.contact", proximity);
+    } catch (NumberFormatException ex) {
+      showErrorDialog("Invalid value for heat simulation");
+      return;
+    }
+    // Each car after the first can drive its own route (from a waypoints file), or the current route
+    List<SimEngine.Route> routes = new ArrayList<>();
+    routes.add(SimEngine.getRoute(gpsMap.markSet.wayStore));
+    for (int ii = 1; ii < numCars; ii++) {
+      fc.setDialogTitle("Select Waypoints for Car " + (ii + 1) + " (Cancel to use current route)");
+      fc.setSelectedFile(new File(prefs.get("default.dir", "/")));
+      int ret = fc.showOpenDialog(gpsMap);
+      fc.setDialogTitle(null);
+      if (ret == JFileChooser.APPROVE_OPTION) {
+        File tFile = fc.getSelectedFile();
+        try (CsvReader in = new CsvReader(tFile)) {
+          routes.add(SimEngine.getRoute(GPSMap.MarkSet.readWaypoints(in, gpsMap.settings)));
+        } catch (IOException ex) {
+          ex.printStackTrace(System.out);
+          showErrorDialog("Unable to load waypoints from " + tFile.getName() + ": " + ex.getMessage());
+          return;
+        }
+      } else {
+        routes.add(routes.get(0));
+      }
+    }
+    MultiSim sim = new MultiSim(proximity);
+    sim.setObstacles(gpsMap.markSet.getObstacles());
+    double step = space / GPSMap.feetPerWorldUnit(simCar.loc.lat), rad = Math.toRadians(simCar.getAngle());
+    for (int ii = 0; ii < numCars; ii++) {
+      GPSMap.SimCar car = simCar.copy();
+      // Note: World Y increases to the south, so the car's right is (cos(angle), sin(angle))
+      car.moveTo(car.getPosX() + Math.cos(rad) * step * ii, car.getPosY() + Math.sin(rad) * step * ii);
+      sim.addCar(car, routes.get(ii));
+    }
+    item.setEnabled(false);
+    new Thread(() -> {
+      long start = System.currentTimeMillis();
+      String report = null, error = null;
+      try {
+        sim.setThrottle(true);
+        sim.run((long) (600 * 1e9 / SimEngine.tickNanos));
+        StringBuilder buf = new StringBuilder();
+        for (int ii = 0; ii < sim.getCarCount(); ii++) {
+          SimEngine engine = sim.getEngine(ii);
+          buf.append(String.format("Car %d: %s, max cross track error %.2f feet, %d waypoints missed, %d obstacles hit%n",
+                                   ii + 1, engine.isFinished() ? String.format("finished in %.2f sec", engine.getFinishTime()) : "did not finish",
+                                   engine.getMaxCrossTrack(), engine.getMissed(), engine.getHits().size()));
+          for (Obstacles.Hit hit : engine.getHits()) {
+            buf.append(String.format("%7.2f sec: %s %s (marker %d) at %.7f, %.7f%n", hit.time,
+                                     hit.isViolation() ? "crossed" : "hit", Obstacles.kindNames[hit.kind], hit.marker + 1,
+                                     hit.loc.lat, hit.loc.lon));
+          }
+        }
+        buf.append(String.format("%n%d contacts%n", sim.getContacts().size()));
+        for (MultiSim.Contact con : sim.getContacts()) {
+          buf.append(String.format("%7.2f sec: car %d and car %d, %.2f feet apart at %.7f, %.7f%n", con.time, con.car1 + 1,
+                                   con.car2 + 1, con.distance, con.loc.lat, con.loc.lon));
+        }
+        report = buf.toString();
+      } catch (Exception ex) {
+        ex.printStackTrace(System.out);
+        error = ex.toString();
+      } finally {
+        String result = report, msg = error;
+        long time = System.currentTimeMillis() - start;
+        SwingUtilities.invokeLater(() -> {
+          item.setEnabled(true);
+          if (result == null) {
+            gpsMap.toolInfo.setText("Heat failed");
+            showErrorDialog("Heat simulation failed" + (msg != null ? ": " + msg : ""));
+            return;
+          }
+          gpsMap.toolInfo.setText("Heat: " + numCars + " cars in " + time + " ms");
+          JTextArea textArea = new JTextArea(result, 20, 80);
+          textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+          textArea.setEditable(false);
+          JOptionPane.showMessageDialog(this, new JScrollPane(textArea), "Heat Results", JOptionPane.PLAIN_MESSAGE);
+        });
+      }
+    }, "MultiSim").start();
+  }
+
+  /**
+   * Ask how an imported track should be simplified
+   * @return simplifier, or null if cancelled
+   */
+  private TrackImporter.Simplifier getSimplifier () {
+    String[] choices = {"Douglas-Peucker", "Distance/Heading Change"};
+    JTextField tol = new JTextField(Double.toString(prefs.getDouble("import.tolerance", 2.0)));
+    JTextField minDist = new JTextField(Double.toString(prefs.getDouble("import.mindist", 5.0)));
+    JTextField maxDist = new JTextField(Double.toString(prefs.getDouble("import.maxdist", 100.0)));
+    JTextField minTurn = new JTextField(Double.toString(prefs.getDouble("import.minturn", 10.0)));
+    Object[][] message = {{"Douglas-Peucker tolerance (feet)", tol}, {"Minimum spacing (feet)", minDist},
+                          {"Maximum spacing (feet)", maxDist}, {"Heading change (degrees)", minTurn}, {"Method:"}};
+    String ret = (String) JOptionPane.showInputDialog(this, message, "Import Track", JOptionPane.PLAIN_MESSAGE, null,
+                                                      choices, prefs.get("import.method", choices[0]));
+    if (ret == null) {
+      return null;
+    }
+    try {
+      double[] vals = {Double.parseDouble(tol.getText()), Double.parseDouble(minDist.getText()), Double.parseDouble(maxDist.getText()),
+                       Double.parseDouble(minTurn.getText())};
+      for (double val : vals) {
+        if (!(val >= 0)) {
+          throw new NumberFormatException();
+        }
+      }
+      prefs.put("import.method", ret);
+      prefs.putDouble("import.tolerance", vals[0]);
+      prefs.putDouble("import.mindist", vals[1]);
+      prefs.putDouble("import.maxdist", vals[2]);
+      prefs.putDouble("import.minturn", vals[3]);
+      if (choices[0].equals(ret)) {
+        return new TrackImporter.DouglasPeucker(vals[0]);
+      }
+      return new TrackImporter.Threshold(vals[1], vals[2], vals[3]);
+    } catch (NumberFormatException ex) {
+      showErrorDialog("Invalid value for track simplification");
+      return null;
+    }
+  }
+
   private boolean showWarningDialog (String msg) {
     return JOptionPane.showConfirmDialog(this, msg, "Warning", JOptionPane.YES_NO_OPTION) == JOptionPane.OK_OPTION;
   }
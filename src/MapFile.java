@@ -0,0 +1,355 @@
+/*
+ * Indexed tile container used for ".map" files.  A map is stored as a pyramid of square image tiles, one
+ * set per zoom level, each tile individually PNG compressed so any single tile can be read and decoded
+ * without touching the rest of the file.
+ *
+ * File layout (all values big endian):
+ *
+ *   Header     int    magic ("GTM1")
+ *              int    version
+ *              int    tile size (pixels)
+ *              int    length of metadata block
+ *              long   offset of tile index
+ *              int    number of entries in tile index
+ *              int    number of appended index chunks (0 in version 1 files)
+ *   Metadata   byte[] opaque block written by the owner of the file (map name, location, etc)
+ *   Tiles      byte[] PNG encoded tile images
+ *   Index      per tile: int level, int col, int row, long offset, int length
+ *
+ * The index is written last, so a file is only valid once its Writer has been closed.
+ *
+ * Readers memory map the file, so opening a map only costs reading its header and index, and tile data
+ * is paged in by the OS as individual tiles are read.
+ *
+ * A map file opened for writing can have tiles appended to it.  New tiles are written after the current
+ * end of the file and an index chunk for just those tiles is periodically written after them, then the
+ * header is patched to point to it.  Each chunk starts with the offset (long) and number of entries (int)
+ * of the index before it, plus a reserved int, so the chunks form a chain back to the index written by the
+ * Writer, and the file only grows by the size of the tiles added (and their entries).  Earlier indexes are
+ * never changed, so the header always points to a complete chain even if the app is killed part way
+ * through an append.  A tile which was replaced is found in the newest chunk which has it.
+ */
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class MapFile implements Closeable {
+  static final int                  TILE_SIZE = 256;
+  private static final int          magic = 0x47544D31;      // "GTM1"
+  private static final int          version = 2;
+  private static final int          headerSize = 32;
+  private static final int          indexEntrySize = 24;
+  private static final int          chunkHeaderSize = 16;
+  private static final long         segmentSize = 1L << 30;    // Note: a single mapping is limited to 2 GB
+  private static final int          flushCount = 64;           // Appended tiles between writes of the index
+  private final FileChannel         channel;
+  private final MappedByteBuffer[]  segments;
+  private final long                mappedSize;
+  private final byte[]              meta;
+  private final int                 tileSize;
+  private final Map<Long,Integer>   lookup = new HashMap<>();
+  private long[]                    keys = new long[16], offsets = new long[16];
+  private int[]                     lengths = new int[16];
+  private final int[]               unflushedIdx = new int[flushCount];
+  private int                       count, unflushed;
+  private long                      end, indexOffset;
+  private int                       indexCount, chunks;
+
+  /**
+   * Open a map file for reading
+   * @param file map file
+   * @throws IOException if file is not a valid map file
+   */
+  MapFile (File file) throws IOException {
+    this(file, false);
+  }
+
+  /**
+   * Open a map file
+   * @param file map file
+   * @param writable true if tiles can be appended to the file
+   * @throws IOException if file is not a valid map file
+   */
+  MapFile (File file, boolean writable) throws IOException {
+    channel = writable ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE) :
+                         FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      long size = end = mappedSize = channel.size();
+      segments = new MappedByteBuffer[(int) ((size + segmentSize - 1) / segmentSize)];
+      for (int ii = 0; ii < segments.length; ii++) {
+        long pos = ii * segmentSize;
+        segments[ii] = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(segmentSize, size - pos));
+      }
+      ByteBuffer header = ByteBuffer.wrap(read(0, headerSize));
+      if (header.getInt() != magic) {
+        throw new IOException("Not a map file: " + file);
+      }
+      int ver = header.getInt();
+      if (ver > version) {
+        throw new IOException("Unsupported map file version " + ver + ": " + file);
+      }
+      tileSize = header.getInt();
+      int metaLength = header.getInt();
+      indexOffset = header.getLong();
+      indexCount = header.getInt();
+      chunks = header.getInt();
+      meta = read(headerSize, metaLength);
+      // Read the chain of index chunks newest first, so the latest entry for a tile is kept
+      long offset = indexOffset;
+      int num = indexCount;
+      for (int chunk = chunks; chunk >= 0; chunk--) {
+        ByteBuffer index = ByteBuffer.wrap(read(offset, (chunk > 0 ? chunkHeaderSize : 0) + num * indexEntrySize));
+        long prevOffset = 0;
+        int prevCount = 0;
+        if (chunk > 0) {
+          prevOffset = index.getLong();
+          prevCount = index.getInt();
+          index.getInt();
+        }
+        for (int ii = 0; ii < num; ii++) {
+          int level = index.getInt();
+          int col = index.getInt();
+          int row = index.getInt();
+          long key = key(level, col, row);
+          long tileOffset = index.getLong();
+          int length = index.getInt();
+          if (!lookup.containsKey(key)) {
+            int idx = addEntry(key);
+            offsets[idx] = tileOffset;
+            lengths[idx] = length;
+          }
+        }
+        offset = prevOffset;
+        num = prevCount;
+      }
+    } catch (IOException | RuntimeException ex) {
+      channel.close();
+      throw ex instanceof IOException ? (IOException) ex : new IOException("Invalid map file: " + file, ex);
+    }
+  }
+
+  // Copy bytes out of the mapped file (handles reads which span two segments, or data appended since it was mapped)
+  private byte[] read (long pos, int length) throws IOException {
+    byte[] data = new byte[length];
+    if (pos + length > mappedSize) {
+      ByteBuffer buf = ByteBuffer.wrap(data);
+      while (buf.hasRemaining()) {
+        if (channel.read(buf, pos + buf.position()) < 0) {
+          throw new EOFException("Map file truncated");
+        }
+      }
+      return data;
+    }
+    int done = 0;
+    while (done < length) {
+      ByteBuffer buf = segments[(int) ((pos + done) / segmentSize)].duplicate();
+      buf.position((int) ((pos + done) % segmentSize));
+      int len = Math.min(length - done, buf.remaining());
+      buf.get(data, done, len);
+      done += len;
+    }
+    return data;
+  }
+
+  /**
+   * Check if a file is in the tiled map format (rather than a legacy, serialized MapSet)
+   */
+  static boolean isMapFile (File file) {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      return in.readInt() == magic;
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  byte[] getMeta () {
+    return meta;
+  }
+
+  int getTileSize () {
+    return tileSize;
+  }
+
+  synchronized boolean hasTile (int level, int col, int row) {
+    return lookup.containsKey(key(level, col, row));
+  }
+
+  /**
+   * Read the compressed data for one tile
+   * @return PNG data, or null if the tile is not present in the file
+   */
+  byte[] readTileData (int level, int col, int row) throws IOException {
+    long offset;
+    int length;
+    synchronized (this) {
+      Integer idx = lookup.get(key(level, col, row));
+      if (idx == null) {
+        return null;
+      }
+      offset = offsets[idx];
+      length = lengths[idx];
+    }
+    return read(offset, length);
+  }
+
+  /**
+   * Read and decode one tile
+   * @return tile image, or null if the tile is not present in the file
+   */
+  BufferedImage readTile (int level, int col, int row) throws IOException {
+    byte[] data = readTileData(level, col, row);
+    return data != null ? ImageIO.read(new ByteArrayInputStream(data)) : null;
+  }
+
+  /**
+   * Append a tile to a file opened as writable (replaces any existing tile at the same position)
+   */
+  synchronized void appendTile (int level, int col, int row, byte[] data) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(data);
+    while (buf.hasRemaining()) {
+      channel.write(buf, end + buf.position());
+    }
+    long key = key(level, col, row);
+    Integer idx = lookup.get(key);
+    if (idx == null) {
+      idx = addEntry(key);
+    }
+    offsets[idx] = end;
+    lengths[idx] = data.length;
+    end += data.length;
+    unflushedIdx[unflushed] = idx;
+    if (++unflushed >= flushCount) {
+      flushIndex();
+    }
+  }
+
+  private int addEntry (long key) {
+    if (count == keys.length) {
+      int size = count * 2;
+      keys = Arrays.copyOf(keys, size);
+      offsets = Arrays.copyOf(offsets, size);
+      lengths = Arrays.copyOf(lengths, size);
+    }
+    keys[count] = key;
+    lookup.put(key, count);
+    return count++;
+  }
+
+  /**
+   * Write an index chunk for the tiles appended since the last one, and update the header to point to it
+   */
+  synchronized void flushIndex () throws IOException {
+    if (unflushed == 0) {
+      return;
+    }
+    // Note: a tile appended twice since the last flush has two entries, both with its latest location
+    ByteBuffer index = ByteBuffer.allocate(chunkHeaderSize + unflushed * indexEntrySize);
+    index.putLong(indexOffset);
+    index.putInt(indexCount);
+    index.putInt(0);
+    for (int ii = 0; ii < unflushed; ii++) {
+      int idx = unflushedIdx[ii];
+      index.putInt((int) (keys[idx] >>> 56));
+      index.putInt((int) (keys[idx] << 8 >> 36));
+      index.putInt((int) (keys[idx] << 36 >> 36));
+      index.putLong(offsets[idx]);
+      index.putInt(lengths[idx]);
+    }
+    index.flip();
+    long chunkOffset = end;
+    while (index.hasRemaining()) {
+      channel.write(index, end + index.position());
+    }
+    end += index.capacity();
+    // Make sure new chunk is on disk before the header points to it
+    channel.force(false);
+    ByteBuffer header = ByteBuffer.allocate(28);
+    header.putInt(version);
+    header.putInt(tileSize);
+    header.putInt(meta.length);
+    header.putLong(chunkOffset);
+    header.putInt(unflushed);
+    header.putInt(chunks + 1);
+    header.flip();
+    channel.write(header, 4);
+    channel.force(false);
+    indexOffset = chunkOffset;
+    indexCount = unflushed;
+    chunks++;
+    unflushed = 0;
+  }
+
+  public synchronized void close () throws IOException {
+    try {
+      flushIndex();
+    } finally {
+      channel.close();
+    }
+  }
+
+  private static long key (int level, int col, int row) {
+    return ((long) (level & 0xFF) << 56) | ((long) (col & 0x0FFFFFFF) << 28) | (row & 0x0FFFFFFF);
+  }
+
+  /**
+   * Writes a new map file.  Tiles can be added in any order, and from multiple threads.
+   */
+  static class Writer implements Closeable {
+    private final DataOutputStream    out;
+    private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+    private final DataOutputStream    indexOut = new DataOutputStream(index);
+    private final File                file;
+    private long                      offset;
+    private int                       count;
+
+    Writer (File file, byte[] meta) throws IOException {
+      this.file = file;
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+      out.writeInt(magic);
+      out.writeInt(version);
+      out.writeInt(TILE_SIZE);
+      out.writeInt(meta.length);
+      out.writeLong(0);       // Index offset (patched in close())
+      out.writeInt(0);        // Index count (patched in close())
+      out.writeInt(0);        // Appended index chunks
+      out.write(meta);
+      offset = headerSize + meta.length;
+    }
+
+    synchronized void addTile (int level, int col, int row, byte[] data) throws IOException {
+      out.write(data);
+      indexOut.writeInt(level);
+      indexOut.writeInt(col);
+      indexOut.writeInt(row);
+      indexOut.writeLong(offset);
+      indexOut.writeInt(data.length);
+      offset += data.length;
+      count++;
+    }
+
+    // Note: tile is compressed before synchronizing, so threads can compress in parallel
+    void addTile (int level, int col, int row, BufferedImage tile) throws IOException {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      ImageIO.write(tile, "png", bout);
+      addTile(level, col, row, bout.toByteArray());
+    }
+
+    public synchronized void close () throws IOException {
+      out.write(index.toByteArray());
+      out.close();
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.seek(16);
+        raf.writeLong(offset);
+        raf.writeInt(count);
+      }
+    }
+  }
+}
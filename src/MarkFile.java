@@ -0,0 +1,185 @@
+/*
+ * Binary container used for ".mrk" files, which hold the markers, waypoints, GPS reference and simulated
+ * car placed on a map.
+ *
+ * File layout (all values big endian):
+ *
+ *   Header     int    magic ("GMK1")
+ *              int    version
+ *              int    length of body
+ *              int    CRC32 of body
+ *   Body       per section: int tag, int length, byte[] data
+ *
+ * Sections are length prefixed, so readers skip sections they do not know, and sections can be added
+ * without changing the version.  The contents of each section are defined by its owner (see MarkSet).
+ *
+ * A file is written to a temporary file which then replaces the old one, so an interrupted save leaves the
+ * previous file intact.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class MarkFile {
+  static final int                        NAME = 1, MARKERS = 2, WAYPOINTS = 3, REFERENCE = 4, CAR = 5, JOURNAL = 6;
+  private static final int                magic = 0x474D4B31;      // "GMK1"
+  private static final int                version = 1;
+  private static final int                headerSize = 16;
+  private final Map<Integer,ByteBuffer>   sections = new HashMap<>();
+  private final List<Integer>             order = new ArrayList<>();
+
+  /**
+   * Check if a file starts with the magic number of a mark file (as opposed to a legacy serialized MarkSet)
+   */
+  static boolean isMarkFile (File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer buf = ByteBuffer.allocate(4);
+      while (buf.hasRemaining() && channel.read(buf) >= 0);
+      return !buf.hasRemaining() && buf.getInt(0) == magic;
+    }
+  }
+
+  /**
+   * Read and verify a mark file
+   * @throws IOException if file is not a valid mark file, or is damaged
+   */
+  static MarkFile read (File file) throws IOException {
+    ByteBuffer buf;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < headerSize || size > Integer.MAX_VALUE) {
+        throw new IOException("Not a mark file: " + file);
+      }
+      buf = ByteBuffer.allocate((int) size);
+      while (buf.hasRemaining() && channel.read(buf) >= 0);
+      buf.flip();
+    }
+    if (buf.getInt() != magic) {
+      throw new IOException("Not a mark file: " + file);
+    }
+    int ver = buf.getInt();
+    if (ver != version) {
+      throw new IOException("Unsupported mark file version " + ver + ": " + file);
+    }
+    int length = buf.getInt();
+    int crc = buf.getInt();
+    if (length != buf.remaining()) {
+      throw new IOException("Mark file truncated: " + file);
+    }
+    CRC32 check = new CRC32();
+    check.update(buf.duplicate());
+    if ((int) check.getValue() != crc) {
+      throw new IOException("Mark file checksum error: " + file);
+    }
+    MarkFile mrk = new MarkFile();
+    try {
+      while (buf.hasRemaining()) {
+        int tag = buf.getInt();
+        int len = buf.getInt();
+        if (len < 0 || len > buf.remaining()) {
+          throw new IOException("Invalid section " + tag + " in mark file: " + file);
+        }
+        ByteBuffer data = buf.slice();
+        data.limit(len);
+        buf.position(buf.position() + len);
+        mrk.sections.put(tag, data);
+        mrk.order.add(tag);
+      }
+    } catch (BufferUnderflowException ex) {
+      throw new IOException("Invalid mark file: " + file, ex);
+    }
+    return mrk;
+  }
+
+  /**
+   * Get the data for a section
+   * @return data, or null if file has no such section
+   */
+  ByteBuffer getSection (int tag) {
+    ByteBuffer data = sections.get(tag);
+    return data != null ? data.duplicate() : null;
+  }
+
+  /**
+   * Add a section to be written by write().  Note: only the data up to the buffer's position is written.
+   * @param size maximum size of the section's data
+   * @return buffer to write the section's data into
+   */
+  ByteBuffer addSection (int tag, int size) {
+    ByteBuffer data = ByteBuffer.allocate(size);
+    if (sections.put(tag, data) == null) {
+      order.add(tag);
+    }
+    return data;
+  }
+
+  void write (File file) throws IOException {
+    List<ByteBuffer> body = new ArrayList<>();
+    int length = 0;
+    CRC32 check = new CRC32();
+    for (int tag : order) {
+      ByteBuffer data = sections.get(tag).duplicate();
+      data.flip();
+      ByteBuffer head = ByteBuffer.allocate(8).putInt(tag).putInt(data.remaining());
+      head.flip();
+      check.update(head.duplicate());
+      check.update(data.duplicate());
+      length += head.remaining() + data.remaining();
+      body.add(head);
+      body.add(data);
+    }
+    ByteBuffer header = ByteBuffer.allocate(headerSize).putInt(magic).putInt(version).putInt(length).putInt((int) check.getValue());
+    header.flip();
+    body.add(0, header);
+    File tmp = new File(file.getPath() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer[] bufs = body.toArray(new ByteBuffer[0]);
+      long total = headerSize + length;
+      while (total > 0) {
+        total -= channel.write(bufs);
+      }
+      channel.force(true);
+    }
+    try {
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException ex) {
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  // Strings are stored as an int length followed by UTF-8 bytes
+
+  static int sizeOf (String str) {
+    return 4 + str.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  static void putString (ByteBuffer buf, String str) {
+    byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+    buf.putInt(bytes.length);
+    buf.put(bytes);
+  }
+
+  static String getString (ByteBuffer buf) {
+    int len = buf.getInt();
+    if (len < 0 || len > buf.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    byte[] bytes = new byte[len];
+    buf.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Simulation of several cars sharing a course (such as a heat start), each with its own route, start
+ * location and driving parameters.  Every car is driven by its own SimEngine, and all the engines are
+ * stepped together, one tick at a time.
+ *
+ * After each step the cars are indexed by location in a SpatialGrid, whose cells are the size of the area
+ * searched around a car, so each car is only compared with the cars in the cells next to it.  The cost of
+ * a step therefore grows with the number of cars, not with the number of pairs of cars.  A Contact is
+ * reported when two cars come within the proximity distance, once for each time they meet.  Obstacles, if
+ * set, are shared by all the engines, which each record the obstacles their car hits (see SimEngine).
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+public class MultiSim {
+  private final List<Car>         cars = new ArrayList<>();
+  private final List<Contact>     contacts = new ArrayList<>();
+  private final Set<Long>         touching = new HashSet<>(), nowTouching = new HashSet<>();
+  private final double            proximity;
+  private final Consumer<Car>     pairCheck = this::checkPair;
+  private SpatialGrid<Car>        grid;
+  private double                  feetPerWorld, range;
+  private long                    ticks;
+  private Car                     current;          // Car pairCheck compares with
+  private Obstacles               obstacles;
+
+  private static class Car {
+    private final int       num;
+    private final SimEngine engine;
+    private double          x, y;
+    private boolean         moved;
+
+    private Car (int num, SimEngine engine) {
+      this.num = num;
+      this.engine = engine;
+    }
+  }
+
+  /**
+   * Two cars coming within the proximity distance of each other
+   */
+  static final class Contact {
+    final int               car1, car2;
+    final double            time, distance;       // Seconds, feet
+    final GPSTileMap.LonLat loc;                  // Midway between the cars
+
+    private Contact (int car1, int car2, double time, double distance, GPSTileMap.LonLat loc) {
+      this.car1 = car1;
+      this.car2 = car2;
+      this.time = time;
+      this.distance = distance;
+      this.loc = loc;
+    }
+  }
+
+  /**
+   * @param proximity distance (in feet) between the cars' locations at which they are in contact
+   */
+  MultiSim (double proximity) {
+    this.proximity = proximity;
+  }
+
+  // Obstacles for cars added after this
+  void setObstacles (Obstacles obstacles) {
+    this.obstacles = obstacles;
+  }
+
+  /**
+   * Add a car
+   * @param car car to simulate (already at its start location, and with its driving parameters set)
+   * @return number of the car (from 0)
+   */
+  int addCar (GPSTileMap.GPSMap.SimCar car, SimEngine.Route route) {
+    if (grid == null) {
+      // Note: World Units are scaled to feet where the first car starts
+      feetPerWorld = GPSTileMap.GPSMap.feetPerWorldUnit(car.getLoc().lat);
+      range = proximity / feetPerWorld;
+      grid = new SpatialGrid<>(range * 2);
+    }
+    Car simCar = new Car(cars.size(), new SimEngine(car, route));
+    if (obstacles != null) {
+      simCar.engine.setObstacles(obstacles);
+    }
+    simCar.x = car.getPosX();
+    simCar.y = car.getPosY();
+    grid.add(simCar, simCar.x, simCar.y);
+    cars.add(simCar);
+    return simCar.num;
+  }
+
+  int getCarCount () {
+    return cars.size();
+  }
+
+  SimEngine getEngine (int num) {
+    return cars.get(num).engine;
+  }
+
+  // Contacts found so far, in the order they happened
+  List<Contact> getContacts () {
+    return contacts;
+  }
+
+  long getTicks () {
+    return ticks;
+  }
+
+  void setThrottle (boolean throttle) {
+    for (Car car : cars) {
+      car.engine.setThrottle(throttle);
+    }
+  }
+
+  /**
+   * Advance every car by one step, then check for cars in contact
+   * @return false if every car was already stopped
+   */
+  boolean step () {
+    boolean any = false;
+    for (Car car : cars) {
+      car.moved = car.engine.step();
+      if (car.moved) {
+        any = true;
+        GPSTileMap.GPSMap.SimCar simCar = car.engine.getCar();
+        car.x = simCar.getPosX();
+        car.y = simCar.getPosY();
+        grid.move(car, car.x, car.y);
+      }
+    }
+    if (!any) {
+      return false;
+    }
+    ticks++;
+    // Note: only pairs with a car which moved can have come into contact
+    nowTouching.clear();
+    for (Car car : cars) {
+      if (car.moved) {
+        current = car;
+        grid.query(car.x - range, car.y - range, car.x + range, car.y + range, pairCheck);
+      }
+    }
+    touching.clear();
+    touching.addAll(nowTouching);
+    return true;
+  }
+
+  /**
+   * Step the cars, as fast as possible, until all of them stop
+   * @param maxTicks maximum number of steps to run
+   * @return number of steps run
+   */
+  long run (long maxTicks) {
+    long start = ticks;
+    while (ticks - start < maxTicks && step());
+    return ticks - start;
+  }
+
+  private void checkPair (Car other) {
+    // Each pair is checked once, by the higher numbered car unless only the lower numbered one moved
+    if (other == current || (other.moved && other.num > current.num)) {
+      return;
+    }
+    double dx = other.x - current.x, dy = other.y - current.y;
+    double dist = Math.sqrt(dx * dx + dy * dy);
+    if (dist < range) {
+      int car1 = Math.min(current.num, other.num), car2 = Math.max(current.num, other.num);
+      long key = ((long) car1 << 32) | car2;
+      nowTouching.add(key);
+      if (!touching.contains(key)) {
+        GPSTileMap.LonLat loc1 = current.engine.getCar().getLoc(), loc2 = other.engine.getCar().getLoc();
+        GPSTileMap.LonLat mid = new GPSTileMap.LonLat((loc1.lon + loc2.lon) / 2, (loc1.lat + loc2.lat) / 2);
+        contacts.add(new Contact(car1, car2, ticks * (SimEngine.tickNanos / 1e9), dist * feetPerWorld, mid));
+      }
+    }
+  }
+}
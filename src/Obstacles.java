@@ -0,0 +1,326 @@
+/*
+ * Course obstacles made from a MarkSet's markers, which a simulated car's footprint (its CarShape polygon,
+ * see SimCar.getFootprint()) is tested against each step:
+ *
+ *   BARREL     CIRCLE marker, a circle of the marker's diameter
+ *   RAMP       RECT marker, a square of the marker's diameter, rotated by the marker's rotation
+ *   HOOP       HOOP marker, a small post for each leg at the ends of the hoop (the car should pass between)
+ *   STANCHION  POLY marker, a circle of the marker's diameter
+ *   BOUNDARY   line joining two Stanchions in a chain, which the car should not cross
+ *
+ * All coordinates are World Units.  Obstacles are added, then build() indexes them in a uniform grid.  The
+ * grid is stored in flat arrays (cell start offsets and obstacle numbers, like a sparse matrix), rather than
+ * as a SpatialGrid, so once built it is never changed, can be shared by simulations on any number of
+ * threads, and a query does no allocation.  State which changes as a car drives (which obstacles it is
+ * touching) is kept by a Checker for each car.
+ */
+
+import java.util.Arrays;
+
+public class Obstacles {
+  static final int              BARREL = 0, RAMP = 1, HOOP = 2, STANCHION = 3, BOUNDARY = 4;
+  static final String[]         kindNames = {"barrel", "ramp", "hoop", "stanchion", "boundary"};
+  private static final int      maxCells = 1 << 20;
+  private int[]                 kind = new int[16], marker = new int[16];
+  private double[]              x0 = new double[16], y0 = new double[16], x1 = new double[16], y1 = new double[16];
+  private double[]              size = new double[16];      // Radius of circles, half the side of squares
+  private double[]              bounds = new double[64];    // minX, minY, maxX, maxY for each obstacle
+  private int                   count;
+  private double                gridX, gridY, cellSize;
+  private int                   cols, rows;
+  private int[]                 cellStart, cellItems;
+
+  interface HitListener {
+    // Called when the car starts to touch an obstacle
+    void hit (int obstacle);
+  }
+
+  /**
+   * An obstacle touched by a car
+   */
+  static final class Hit {
+    final double            time;           // Seconds
+    final int               kind, marker;   // marker is the index in MarkSet's markers
+    final GPSTileMap.LonLat loc;            // Location of car
+
+    Hit (double time, int kind, int marker, GPSTileMap.LonLat loc) {
+      this.time = time;
+      this.kind = kind;
+      this.marker = marker;
+      this.loc = loc;
+    }
+
+    boolean isViolation () {
+      return kind == BOUNDARY;
+    }
+  }
+
+  /**
+   * Tests one car against the obstacles.  Note: not thread safe, so each car needs its own Checker.
+   */
+  final class Checker {
+    private final int[]     seen = new int[count], touched = new int[count];
+    private int             stamp = 1;      // Note: from 1, so no obstacle starts as touched on the step before
+
+    /**
+     * Test a car's footprint against the obstacles near it, and report the obstacles it has started to
+     * touch since the last test
+     * @param xs, ys footprint polygon
+     * @return number of obstacles the car is touching
+     */
+    int check (double[] xs, double[] ys, int npoints, HitListener listener) {
+      stamp++;
+      double minX = xs[0], minY = ys[0], maxX = minX, maxY = minY;
+      for (int ii = 1; ii < npoints; ii++) {
+        minX = Math.min(minX, xs[ii]);
+        maxX = Math.max(maxX, xs[ii]);
+        minY = Math.min(minY, ys[ii]);
+        maxY = Math.max(maxY, ys[ii]);
+      }
+      if (count == 0) {
+        return 0;
+      }
+      int cx0 = Math.max(0, cell(minX - gridX)), cx1 = Math.min(cols - 1, cell(maxX - gridX));
+      int cy0 = Math.max(0, cell(minY - gridY)), cy1 = Math.min(rows - 1, cell(maxY - gridY));
+      int touching = 0;
+      for (int cy = cy0; cy <= cy1; cy++) {
+        for (int cx = cx0; cx <= cx1; cx++) {
+          int cel = cy * cols + cx;
+          for (int jj = cellStart[cel]; jj < cellStart[cel + 1]; jj++) {
+            int obs = cellItems[jj];
+            // Note: obstacles which span cells are listed in each of them, so test each one only once
+            if (seen[obs] == stamp) {
+              continue;
+            }
+            seen[obs] = stamp;
+            int bb = obs * 4;
+            if (bounds[bb] > maxX || bounds[bb + 2] < minX || bounds[bb + 1] > maxY || bounds[bb + 3] < minY) {
+              continue;
+            }
+            if (touches(obs, xs, ys, npoints)) {
+              touching++;
+              if (touched[obs] != stamp - 1) {
+                listener.hit(obs);
+              }
+              touched[obs] = stamp;
+            }
+          }
+        }
+      }
+      return touching;
+    }
+  }
+
+  int size () {
+    return count;
+  }
+
+  int getKind (int obstacle) {
+    return kind[obstacle];
+  }
+
+  int getMarker (int obstacle) {
+    return marker[obstacle];
+  }
+
+  // Add a BARREL, HOOP (leg) or STANCHION
+  void addCircle (int kind, int marker, double x, double y, double radius) {
+    add(kind, marker, x, y, x, y, radius);
+    setBounds(x - radius, y - radius, x + radius, y + radius);
+  }
+
+  /**
+   * Add a RAMP
+   * @param rotation rotation of the square (in degrees, clockwise)
+   */
+  void addRamp (int marker, double x, double y, double half, double rotation) {
+    double rad = Math.toRadians(rotation);
+    add(RAMP, marker, x, y, Math.cos(rad), Math.sin(rad), half);
+    double ext = half * Math.sqrt(2);
+    setBounds(x - ext, y - ext, x + ext, y + ext);
+  }
+
+  // Add a BOUNDARY
+  void addBoundary (int marker, double ax, double ay, double bx, double by) {
+    add(BOUNDARY, marker, ax, ay, bx, by, 0);
+    setBounds(Math.min(ax, bx), Math.min(ay, by), Math.max(ax, bx), Math.max(ay, by));
+  }
+
+  /**
+   * Index the obstacles, after which none can be added
+   * @param cellSize width and height of a grid cell (about the size of a car)
+   */
+  Obstacles build (double cellSize) {
+    if (count == 0) {
+      cols = rows = 1;
+      cellStart = new int[2];
+      cellItems = new int[0];
+      return this;
+    }
+    double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+    for (int ii = 0; ii < count; ii++) {
+      minX = Math.min(minX, bounds[ii * 4]);
+      minY = Math.min(minY, bounds[ii * 4 + 1]);
+      maxX = Math.max(maxX, bounds[ii * 4 + 2]);
+      maxY = Math.max(maxY, bounds[ii * 4 + 3]);
+    }
+    // Note: use larger cells if obstacles are spread over so large an area the grid would be too big
+    while ((maxX - minX) / cellSize * ((maxY - minY) / cellSize) > maxCells) {
+      cellSize *= 2;
+    }
+    this.cellSize = cellSize;
+    gridX = minX;
+    gridY = minY;
+    cols = cell(maxX - minX) + 1;
+    rows = cell(maxY - minY) + 1;
+    // Count the obstacles in each cell, then list them by cell
+    cellStart = new int[cols * rows + 1];
+    for (int pass = 0; pass < 2; pass++) {
+      int[] fill = pass == 0 ? null : Arrays.copyOf(cellStart, cellStart.length);
+      for (int ii = 0; ii < count; ii++) {
+        int cx0 = cell(bounds[ii * 4] - minX), cx1 = cell(bounds[ii * 4 + 2] - minX);
+        int cy0 = cell(bounds[ii * 4 + 1] - minY), cy1 = cell(bounds[ii * 4 + 3] - minY);
+        for (int cy = cy0; cy <= cy1; cy++) {
+          for (int cx = cx0; cx <= cx1; cx++) {
+            if (pass == 0) {
+              cellStart[cy * cols + cx + 1]++;
+            } else {
+              cellItems[fill[cy * cols + cx]++] = ii;
+            }
+          }
+        }
+      }
+      if (pass == 0) {
+        for (int ii = 1; ii < cellStart.length; ii++) {
+          cellStart[ii] += cellStart[ii - 1];
+        }
+        cellItems = new int[cellStart[cellStart.length - 1]];
+      }
+    }
+    return this;
+  }
+
+  Checker newChecker () {
+    return new Checker();
+  }
+
+  private void add (int kind, int marker, double x0, double y0, double x1, double y1, double size) {
+    if (count == this.kind.length) {
+      int len = count * 2;
+      this.kind = Arrays.copyOf(this.kind, len);
+      this.marker = Arrays.copyOf(this.marker, len);
+      this.x0 = Arrays.copyOf(this.x0, len);
+      this.y0 = Arrays.copyOf(this.y0, len);
+      this.x1 = Arrays.copyOf(this.x1, len);
+      this.y1 = Arrays.copyOf(this.y1, len);
+      this.size = Arrays.copyOf(this.size, len);
+      bounds = Arrays.copyOf(bounds, len * 4);
+    }
+    this.kind[count] = kind;
+    this.marker[count] = marker;
+    this.x0[count] = x0;
+    this.y0[count] = y0;
+    this.x1[count] = x1;
+    this.y1[count] = y1;
+    this.size[count] = size;
+    count++;
+  }
+
+  private void setBounds (double minX, double minY, double maxX, double maxY) {
+    int bb = (count - 1) * 4;
+    bounds[bb] = minX;
+    bounds[bb + 1] = minY;
+    bounds[bb + 2] = maxX;
+    bounds[bb + 3] = maxY;
+  }
+
+  private int cell (double offset) {
+    return (int) Math.floor(offset / cellSize);
+  }
+
+  private boolean touches (int obs, double[] xs, double[] ys, int npoints) {
+    double ax = x0[obs], ay = y0[obs];
+    switch (kind[obs]) {
+      case RAMP: {
+        double cs = x1[obs], sn = y1[obs], half = size[obs];
+        // Test for a corner of either shape inside the other, then for crossing edges
+        for (int ii = 0; ii < npoints; ii++) {
+          double dx = xs[ii] - ax, dy = ys[ii] - ay;
+          if (Math.abs(dx * cs + dy * sn) <= half && Math.abs(dy * cs - dx * sn) <= half) {
+            return true;
+          }
+        }
+        double px = ax + (half * cs - half * sn), py = ay + (half * sn + half * cs);
+        for (int corner = 0; corner < 4; corner++) {
+          // Next corner is this one rotated 90 degrees around the center
+          double nx = ax - (py - ay), ny = ay + (px - ax);
+          if (corner == 0 && contains(xs, ys, npoints, px, py)) {
+            return true;
+          }
+          if (crossesPolygon(xs, ys, npoints, px, py, nx, ny)) {
+            return true;
+          }
+          px = nx;
+          py = ny;
+        }
+        return false;
+      }
+      case BOUNDARY:
+        return contains(xs, ys, npoints, ax, ay) || crossesPolygon(xs, ys, npoints, ax, ay, x1[obs], y1[obs]);
+      default: {
+        double rad2 = size[obs] * size[obs];
+        if (contains(xs, ys, npoints, ax, ay)) {
+          return true;
+        }
+        for (int ii = 0, jj = npoints - 1; ii < npoints; jj = ii++) {
+          if (segmentDistance2(ax, ay, xs[jj], ys[jj], xs[ii], ys[ii]) < rad2) {
+            return true;
+          }
+        }
+        return false;
+      }
+    }
+  }
+
+  // Test if point (px, py) is inside a polygon (by counting crossings of a ray from the point)
+  private static boolean contains (double[] xs, double[] ys, int npoints, double px, double py) {
+    boolean inside = false;
+    for (int ii = 0, jj = npoints - 1; ii < npoints; jj = ii++) {
+      if ((ys[ii] > py) != (ys[jj] > py) && px < (xs[jj] - xs[ii]) * (py - ys[ii]) / (ys[jj] - ys[ii]) + xs[ii]) {
+        inside = !inside;
+      }
+    }
+    return inside;
+  }
+
+  // Test if the segment from (ax, ay) to (bx, by) crosses an edge of a polygon
+  private static boolean crossesPolygon (double[] xs, double[] ys, int npoints, double ax, double ay, double bx, double by) {
+    for (int ii = 0, jj = npoints - 1; ii < npoints; jj = ii++) {
+      if (segmentsCross(ax, ay, bx, by, xs[jj], ys[jj], xs[ii], ys[ii])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean segmentsCross (double ax, double ay, double bx, double by, double cx, double cy, double dx, double dy) {
+    double d1 = cross(cx, cy, dx, dy, ax, ay), d2 = cross(cx, cy, dx, dy, bx, by);
+    double d3 = cross(ax, ay, bx, by, cx, cy), d4 = cross(ax, ay, bx, by, dx, dy);
+    return ((d1 > 0) != (d2 > 0)) && ((d3 > 0) != (d4 > 0));
+  }
+
+  // Which side of the line from (ax, ay) to (bx, by) point (px, py) is on
+  private static double cross (double ax, double ay, double bx, double by, double px, double py) {
+    return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+  }
+
+  // Square of the distance from point (px, py) to the segment from (ax, ay) to (bx, by)
+  private static double segmentDistance2 (double px, double py, double ax, double ay, double bx, double by) {
+    double dx = bx - ax, dy = by - ay;
+    double len2 = dx * dx + dy * dy;
+    double tt = len2 > 0 ? ((px - ax) * dx + (py - ay) * dy) / len2 : 0;
+    tt = Math.max(0, Math.min(1, tt));
+    double ex = ax + tt * dx - px, ey = ay + tt * dy - py;
+    return ex * ex + ey * ey;
+  }
+}
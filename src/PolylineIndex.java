@@ -0,0 +1,132 @@
+/*
+ * Bounding boxes for runs of consecutive points in a polyline, used to find the points and segments which
+ * may be visible in a viewport without testing every one of them.  Each run of runSize points also covers
+ * the segment which joins its last point to the first point of the next run, so a segment which crosses
+ * the viewport is found even when both of its ends are outside it.
+ *
+ * Moving a point only recomputes the bounds of the run(s) which contain it.
+ */
+
+import java.util.Arrays;
+
+public class PolylineIndex {
+  static final int          runSize = 64;
+  private double[]          xs = new double[runSize], ys = new double[runSize];
+  private double[]          bounds = new double[4];     // minX, minY, maxX, maxY for each run
+  private int               count;
+
+  interface RangeVisitor {
+    // Visit points from..to - 1, and the segments which start at them
+    void visit (int from, int to);
+  }
+
+  void clear () {
+    count = 0;
+  }
+
+  int size () {
+    return count;
+  }
+
+  double getX (int idx) {
+    return xs[idx];
+  }
+
+  double getY (int idx) {
+    return ys[idx];
+  }
+
+  // Note: arrays may be longer than size() and are replaced as points are added
+  double[] getXs () {
+    return xs;
+  }
+
+  double[] getYs () {
+    return ys;
+  }
+
+  void add (double x, double y) {
+    if (count == xs.length) {
+      xs = Arrays.copyOf(xs, count * 2);
+      ys = Arrays.copyOf(ys, count * 2);
+    }
+    int runs = (count + runSize - 1) / runSize + 1;
+    if (runs * 4 > bounds.length) {
+      bounds = Arrays.copyOf(bounds, Math.max(runs * 4, bounds.length * 2));
+    }
+    xs[count] = x;
+    ys[count] = y;
+    count++;
+    // New point extends its own run and, as the end of the joining segment, the run before it
+    updateRun((count - 1) / runSize);
+    if ((count - 1) % runSize == 0 && count > 1) {
+      updateRun((count - 1) / runSize - 1);
+    }
+  }
+
+  void addAll (double[] xs, double[] ys, int count) {
+    int start = this.count;
+    if (start + count > this.xs.length) {
+      int size = Math.max(start + count, this.xs.length * 2);
+      this.xs = Arrays.copyOf(this.xs, size);
+      this.ys = Arrays.copyOf(this.ys, size);
+    }
+    System.arraycopy(xs, 0, this.xs, start, count);
+    System.arraycopy(ys, 0, this.ys, start, count);
+    this.count += count;
+    int runs = (this.count + runSize - 1) / runSize;
+    if (runs * 4 > bounds.length) {
+      bounds = Arrays.copyOf(bounds, runs * 4);
+    }
+    for (int run = Math.max(0, start / runSize - 1); run < runs; run++) {
+      updateRun(run);
+    }
+  }
+
+  void set (int idx, double x, double y) {
+    xs[idx] = x;
+    ys[idx] = y;
+    updateRun(idx / runSize);
+    if (idx % runSize == 0 && idx > 0) {
+      updateRun(idx / runSize - 1);
+    }
+  }
+
+  /**
+   * Visit the range of points in each run whose bounds (including the segment which joins it to the next
+   * run) intersect a rectangle.  Note: the visitor must still test each point, or segment, in the range.
+   */
+  void query (double x0, double y0, double x1, double y1, RangeVisitor visitor) {
+    int runs = (count + runSize - 1) / runSize;
+    for (int run = 0; run < runs; run++) {
+      int bb = run * 4;
+      if (bounds[bb] <= x1 && bounds[bb + 2] >= x0 && bounds[bb + 1] <= y1 && bounds[bb + 3] >= y0) {
+        visitor.visit(run * runSize, Math.min((run + 1) * runSize, count));
+      }
+    }
+  }
+
+  private void updateRun (int run) {
+    int from = run * runSize;
+    int to = Math.min((run + 1) * runSize, count - 1);
+    double minX = xs[from], minY = ys[from], maxX = minX, maxY = minY;
+    for (int ii = from + 1; ii <= to; ii++) {
+      minX = Math.min(minX, xs[ii]);
+      minY = Math.min(minY, ys[ii]);
+      maxX = Math.max(maxX, xs[ii]);
+      maxY = Math.max(maxY, ys[ii]);
+    }
+    int bb = run * 4;
+    bounds[bb] = minX;
+    bounds[bb + 1] = minY;
+    bounds[bb + 2] = maxX;
+    bounds[bb + 3] = maxY;
+  }
+
+  /**
+   * Check if a segment may cross a rectangle (tests the segment's bounding box)
+   */
+  static boolean mayCross (double ax, double ay, double bx, double by, double x0, double y0, double x1, double y1) {
+    return Math.min(ax, bx) <= x1 && Math.max(ax, bx) >= x0 && Math.min(ay, by) <= y1 && Math.max(ay, by) >= y0;
+  }
+}
@@ -0,0 +1,338 @@
+/*
+ * Headless simulation of a SimCar driving a route.  The car is advanced in fixed steps of simulated time
+ * (tickNanos), so a run gives the same result however fast it is stepped, and however busy the machine is.
+ *
+ * run() steps as fast as possible (for batch runs with no UI), while runRealTime() paces the steps to the
+ * wall clock and publishes a Sample of the car's state after each batch of steps.  A view only reads the
+ * latest Sample, so drawing never touches the car being simulated, and a slow repaint delays the next
+ * frame, not the simulation.
+ *
+ * Each step also scores the drive: the largest cross track error (distance of the car from the line it is
+ * following), the waypoints it missed (passed further than missRadius away), and the time it reached the
+ * last waypoint.  Distances are reported in feet, using the scale of World Units where the car started,
+ * which is accurate to well under a foot over the size of a course.  If obstacles are set, the car's
+ * footprint is also tested against them each step, and each obstacle it runs into (or boundary it crosses)
+ * is recorded as a Hit.
+ *
+ * Steps work on World Units (routes give waypoints already projected) and do no allocation, so long runs
+ * and large sweeps do not load the GC.  Only samples (and hits) allocate.
+ *
+ * Note: the engine simulates its own car (see SimCar.copy()), and only the throttle may be changed from
+ * another thread while it runs.  The route may be changed by a route supplier, which gets the route at the
+ * start of each step, so it must supply immutable routes (see getRoute()) safely published to the engine's
+ * thread (through a volatile field, etc).
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+public class SimEngine {
+  static final long                     tickNanos = TimeUnit.MILLISECONDS.toNanos(20);    // Simulated time per step
+  private static final int              maxCatchUp = 50;      // Steps run before a frame when behind the clock
+  private static final double           gpsCorrelation = 0.98;  // Correlation of GPS error from step to step
+  private final GPSTileMap.GPSMap.SimCar car;
+  private final Supplier<Route>         routes;
+  private final double                  startX, startY, feetPerWorld;
+  private volatile boolean              throttle;
+  private volatile Sample               latest;
+  private boolean                       nextWayPoint;
+  private long                          ticks, finishTick = -1;
+  private double                        missRadius = 5, maxCrossTrack;
+  private int                           missed;
+  private Random                        gpsRandom;
+  private double                        gpsNoise, gpsErrNorth, gpsErrEast;
+  private final List<Obstacles.Hit>     hits = new ArrayList<>();
+  private final Obstacles.HitListener   hitListener = this::hit;
+  private Obstacles                     obstacles;
+  private Obstacles.Checker             checker;
+  private double[]                      footX, footY;   // Car's footprint (reused each step)
+  private int                           violations;
+
+  /**
+   * Route the car drives.  Note: a route may be read by engines on other threads, so it should not change.
+   */
+  interface Route {
+    int getWaypointCount ();
+
+    // Location of a waypoint in World Units
+    double getWorldX (int idx);
+
+    double getWorldY (int idx);
+  }
+
+  /**
+   * Immutable state of the car after a step
+   */
+  static final class Sample {
+    final GPSTileMap.LonLat loc;
+    final double            angle, speed;
+    final int               wayIdx, hits;
+    final long              tick;
+
+    private Sample (GPSTileMap.LonLat loc, double angle, double speed, int wayIdx, int hits, long tick) {
+      this.loc = loc;
+      this.angle = angle;
+      this.speed = speed;
+      this.wayIdx = wayIdx;
+      this.hits = hits;
+      this.tick = tick;
+    }
+
+    // Simulated time (in seconds) of the sample
+    double getTime () {
+      return tick * (tickNanos / 1e9);
+    }
+  }
+
+  /**
+   * @param car car to simulate, which the engine changes as it runs
+   */
+  SimEngine (GPSTileMap.GPSMap.SimCar car, Route route) {
+    this(car, () -> route);
+  }
+
+  /**
+   * @param car car to simulate, which the engine changes as it runs
+   * @param routes gets the current route at the start of each step (so the waypoints can be edited while
+   *               the car is driving)
+   */
+  SimEngine (GPSTileMap.GPSMap.SimCar car, Supplier<Route> routes) {
+    this.car = car;
+    this.routes = routes;
+    startX = car.getPosX();
+    startY = car.getPosY();
+    feetPerWorld = GPSTileMap.GPSMap.feetPerWorldUnit(car.getLoc().lat);
+    latest = sample();
+  }
+
+  /**
+   * Route made of a copy of a set of waypoints, which are projected once, here.  The route may be shared by
+   * engines on different threads.
+   */
+  static Route getRoute (WaypointStore store) {
+    int count = store.size();
+    double[] xs = store.copyLon(), ys = store.copyLat();
+    GPSTileMap.GPSMap.lonToWorldX(xs, 0, xs, 0, count);
+    GPSTileMap.GPSMap.latToWorldY(ys, 0, ys, 0, count);
+    return new Route() {
+      public int getWaypointCount () {
+        return count;
+      }
+
+      public double getWorldX (int idx) {
+        return xs[idx];
+      }
+
+      public double getWorldY (int idx) {
+        return ys[idx];
+      }
+    };
+  }
+
+  /**
+   * Add simulated GPS error to the location the car steers by.  The error drifts slowly (like GPS error
+   * does), rather than changing at random each step.
+   * @param noise standard deviation (in feet) of the error
+   * @param seed seed for the error, so runs can be repeated
+   */
+  void setGpsNoise (double noise, long seed) {
+    gpsNoise = noise;
+    gpsRandom = noise > 0 ? new Random(seed) : null;
+    gpsErrNorth = gpsErrEast = 0;
+  }
+
+  /**
+   * Test the car against obstacles each step
+   * @param obstacles obstacles (which may be shared with other engines), or null for none
+   */
+  void setObstacles (Obstacles obstacles) {
+    this.obstacles = obstacles;
+    checker = obstacles != null ? obstacles.newChecker() : null;
+    int size = car.getFootprintSize();
+    footX = new double[size];
+    footY = new double[size];
+  }
+
+  /**
+   * Set how far (in feet) the car can pass from a waypoint without missing it
+   */
+  void setMissRadius (double missRadius) {
+    this.missRadius = missRadius;
+  }
+
+  // True once the car has reached the last waypoint
+  boolean isFinished () {
+    return finishTick >= 0;
+  }
+
+  // Simulated time (in seconds) the car reached the last waypoint, or NaN if it has not
+  double getFinishTime () {
+    return finishTick >= 0 ? finishTick * (tickNanos / 1e9) : Double.NaN;
+  }
+
+  // Largest distance (in feet) the car has been from the line between the waypoints it was driving between
+  double getMaxCrossTrack () {
+    return maxCrossTrack;
+  }
+
+  // Number of waypoints the car has passed further than missRadius away
+  int getMissed () {
+    return missed;
+  }
+
+  // Obstacles the car has run into, and boundaries it has crossed, in the order it happened
+  List<Obstacles.Hit> getHits () {
+    return hits;
+  }
+
+  // Number of hits which were boundaries crossed
+  int getViolations () {
+    return violations;
+  }
+
+  /**
+   * Set if the car drives towards the next waypoint (true), or brakes to a stop (false)
+   */
+  void setThrottle (boolean throttle) {
+    this.throttle = throttle;
+  }
+
+  // True until the throttle is off and the car has stopped
+  boolean isRunning () {
+    return throttle || car.getSpeed() > 0;
+  }
+
+  long getTicks () {
+    return ticks;
+  }
+
+  GPSTileMap.GPSMap.SimCar getCar () {
+    return car;
+  }
+
+  /**
+   * Get the state published after the last batch of steps run by runRealTime(), or the state when the
+   * engine was created.  Note: may be called from any thread.
+   */
+  Sample getLatest () {
+    return latest;
+  }
+
+  /**
+   * Advance the car by one step
+   * @return false if car was already stopped
+   */
+  boolean step () {
+    if (!isRunning()) {
+      return false;
+    }
+    // Note: route is the car's location followed by the waypoints
+    Route route = routes.get();
+    int routeLen = route.getWaypointCount() + 1;
+    if (routeLen < 2) {
+      // Note: waypoints were cleared while the car was driving, so stop it where it is
+      throttle = false;
+      car.stop();
+      return false;
+    }
+    int wayIdx = Math.min(car.getWayIdx(), routeLen - 1);
+    if (nextWayPoint && throttle) {
+      double dx = route.getWorldX(wayIdx - 1) - car.getPosX(), dy = route.getWorldY(wayIdx - 1) - car.getPosY();
+      if (Math.sqrt(dx * dx + dy * dy) * feetPerWorld > missRadius) {
+        missed++;
+      }
+      // Check if we've reached last waypoint
+      if (++wayIdx >= routeLen) {
+        throttle = false;
+        wayIdx = routeLen - 1;
+        finishTick = ticks;
+      }
+    }
+    car.setWayIdx(wayIdx);
+    double wayX = route.getWorldX(wayIdx - 1), wayY = route.getWorldY(wayIdx - 1);
+    double prevX = wayIdx > 1 ? route.getWorldX(wayIdx - 2) : car.getPosX();
+    double prevY = wayIdx > 1 ? route.getWorldY(wayIdx - 2) : car.getPosY();
+    if (gpsRandom != null) {
+      updateGpsError();
+    }
+    nextWayPoint = car.doMove(prevX, prevY, wayX, wayY, throttle);
+    ticks++;
+    if (throttle) {
+      double fromX = wayIdx > 1 ? prevX : startX, fromY = wayIdx > 1 ? prevY : startY;
+      maxCrossTrack = Math.max(maxCrossTrack, crossTrack(fromX, fromY, wayX, wayY, car.getPosX(), car.getPosY()));
+    }
+    if (checker != null) {
+      car.getFootprint(footX, footY);
+      checker.check(footX, footY, footX.length, hitListener);
+    }
+    return true;
+  }
+
+  private void hit (int obstacle) {
+    int kind = obstacles.getKind(obstacle);
+    hits.add(new Obstacles.Hit(ticks * (tickNanos / 1e9), kind, obstacles.getMarker(obstacle), car.getLoc()));
+    if (kind == Obstacles.BOUNDARY) {
+      violations++;
+    }
+  }
+
+  private void updateGpsError () {
+    // First order Gauss-Markov process with a standard deviation of gpsNoise
+    double scale = gpsNoise * Math.sqrt(1 - gpsCorrelation * gpsCorrelation);
+    gpsErrNorth = gpsErrNorth * gpsCorrelation + gpsRandom.nextGaussian() * scale;
+    gpsErrEast = gpsErrEast * gpsCorrelation + gpsRandom.nextGaussian() * scale;
+    // Note: World Y increases to the south
+    car.setGpsError(gpsErrEast / feetPerWorld, -gpsErrNorth / feetPerWorld);
+  }
+
+  // Distance (in feet) of point (px, py) from the line from (ax, ay) to (bx, by)
+  private double crossTrack (double ax, double ay, double bx, double by, double px, double py) {
+    double dx = bx - ax, dy = by - ay;
+    px -= ax;
+    py -= ay;
+    double len = Math.sqrt(dx * dx + dy * dy);
+    return (len > 0 ? Math.abs(dx * py - dy * px) / len : Math.sqrt(px * px + py * py)) * feetPerWorld;
+  }
+
+  /**
+   * Step the car, as fast as possible, until it stops
+   * @param maxTicks maximum number of steps to run
+   * @return number of steps run
+   */
+  long run (long maxTicks) {
+    long start = ticks;
+    while (ticks - start < maxTicks && step());
+    latest = sample();
+    return ticks - start;
+  }
+
+  /**
+   * Step the car in real time until it stops, publishing a sample (then calling listener) after each batch
+   * of steps.  If stepping falls behind the clock (the machine was suspended, etc), the missed time is
+   * skipped, rather than run all at once.
+   * @param listener called on this thread after each new sample
+   */
+  void runRealTime (Runnable listener) throws InterruptedException {
+    long start = System.nanoTime(), startTicks = ticks;
+    while (isRunning()) {
+      long due = (System.nanoTime() - start) / tickNanos + 1;
+      for (int ii = 0; ii < maxCatchUp && ticks - startTicks < due && step(); ii++);
+      if (ticks - startTicks < due) {
+        start = System.nanoTime() - (ticks - startTicks) * tickNanos;
+      }
+      latest = sample();
+      listener.run();
+      long wait = start + (ticks - startTicks) * tickNanos - System.nanoTime();
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+    }
+  }
+
+  private Sample sample () {
+    return new Sample(car.getLoc(), car.getAngle(), car.getSpeed(), car.getWayIdx(), hits.size(), ticks);
+  }
+}
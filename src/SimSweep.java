@@ -0,0 +1,180 @@
+/*
+ * Monte Carlo sweep of SimCar's driving parameters.  Each run drives the route headless (see SimEngine)
+ * with a parameter vector picked at random from the ranges set for the sweep (and optional GPS noise), and
+ * the runs are spread over the cores by a ForkJoinPool.  Runs are independent and each is seeded by its
+ * number, so a sweep gives the same results however the runs are split between threads.
+ *
+ * Results are ranked by finishing the route, then by obstacles hit (including boundaries crossed), then by
+ * waypoints missed, then by lap time, then by largest cross track error.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SimSweep {
+  static final int                      MAX_STEER = 0, CI_RADIUS = 1, WAY_RADIUS = 2, ACCEL = 3, MAX_SPEED = 4;
+  static final String[]                 paramNames = {"maxSteer", "ciRadius", "wayRadius", "accel", "maxSpeed"};
+  private static final int              batchSize = 16;       // Runs done by a task without splitting it
+  private final GPSTileMap.GPSMap.SimCar car;
+  private final SimEngine.Route         route;
+  private final double[]                min = new double[paramNames.length], max = new double[paramNames.length];
+  private final AtomicInteger           done = new AtomicInteger();
+  private double                        gpsNoise, missRadius = 5, maxTime = 600;
+  private Obstacles                     obstacles;
+
+  static final class Result {
+    static final Comparator<Result> ranking = Comparator.comparing((Result res) -> !res.finished)
+                                                        .thenComparingInt(res -> res.hits)
+                                                        .thenComparingInt(res -> res.missed)
+                                                        .thenComparingDouble(res -> res.lapTime)
+                                                        .thenComparingDouble(res -> res.maxCrossTrack);
+    final int       run;
+    final double[]  params;
+    final boolean   finished;
+    final double    lapTime, maxCrossTrack;     // Seconds, feet
+    final int       missed, hits, violations;   // hits includes violations (boundaries crossed)
+
+    private Result (int run, double[] params, SimEngine engine) {
+      this.run = run;
+      this.params = params;
+      finished = engine.isFinished();
+      lapTime = finished ? engine.getFinishTime() : engine.getTicks() * (SimEngine.tickNanos / 1e9);
+      maxCrossTrack = engine.getMaxCrossTrack();
+      missed = engine.getMissed();
+      hits = engine.getHits().size();
+      violations = engine.getViolations();
+    }
+  }
+
+  /**
+   * Start with every parameter fixed at its value in car
+   * @param car car to copy for each run (with its start location and heading)
+   */
+  SimSweep (GPSTileMap.GPSMap.SimCar car, WaypointStore waypoints) {
+    this.car = car.copy();
+    route = SimEngine.getRoute(waypoints);
+    double[] vals = {car.getMaxSteer(), car.getCiRadius(), car.getWayRadius(), car.getAccel(), car.getMaxSpeed()};
+    System.arraycopy(vals, 0, min, 0, vals.length);
+    System.arraycopy(vals, 0, max, 0, vals.length);
+  }
+
+  /**
+   * Set the range a parameter is picked from (in SimCar's units, see SimCar.setParams())
+   */
+  void setRange (int param, double min, double max) {
+    this.min[param] = Math.min(min, max);
+    this.max[param] = Math.max(min, max);
+  }
+
+  // Standard deviation (in feet) of the GPS error added to each run
+  void setGpsNoise (double gpsNoise) {
+    this.gpsNoise = gpsNoise;
+  }
+
+  // Obstacles each run is tested against (see SimEngine.setObstacles())
+  void setObstacles (Obstacles obstacles) {
+    this.obstacles = obstacles;
+  }
+
+  // Distance (in feet) from a waypoint the car must pass within
+  void setMissRadius (double missRadius) {
+    this.missRadius = missRadius;
+  }
+
+  // Simulated time (in seconds) allowed for a run
+  void setMaxTime (double maxTime) {
+    this.maxTime = maxTime;
+  }
+
+  // Number of runs finished by the current sweep (for showing progress)
+  int getDone () {
+    return done.get();
+  }
+
+  /**
+   * Do the runs, using all threads in pool
+   * @param seed seed for the parameters and GPS noise
+   * @return results, best first
+   */
+  List<Result> run (int runs, long seed, ForkJoinPool pool) {
+    done.set(0);
+    Result[] results = new Result[runs];
+    pool.invoke(new Runs(results, 0, runs, seed));
+    List<Result> list = new ArrayList<>(Arrays.asList(results));
+    list.sort(Result.ranking);
+    return list;
+  }
+
+  private class Runs extends RecursiveAction {
+    private static final long serialVersionUID = 2871516032907441379L;
+    private final Result[]  results;
+    private final int       from, to;
+    private final long      seed;
+
+    private Runs (Result[] results, int from, int to, long seed) {
+      this.results = results;
+      this.from = from;
+      this.to = to;
+      this.seed = seed;
+    }
+
+    protected void compute () {
+      if (to - from > batchSize) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new Runs(results, from, mid, seed), new Runs(results, mid, to, seed));
+      } else {
+        for (int ii = from; ii < to; ii++) {
+          results[ii] = runOne(ii, seed);
+          done.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private Result runOne (int run, long seed) {
+    SplittableRandom rand = new SplittableRandom(seed + run);
+    double[] params = new double[paramNames.length];
+    for (int ii = 0; ii < params.length; ii++) {
+      params[ii] = min[ii] < max[ii] ? rand.nextDouble(min[ii], max[ii]) : min[ii];
+    }
+    GPSTileMap.GPSMap.SimCar runCar = car.copy();
+    runCar.setParams(params[MAX_STEER], params[CI_RADIUS], params[WAY_RADIUS], params[ACCEL], params[MAX_SPEED]);
+    SimEngine engine = new SimEngine(runCar, route);
+    engine.setGpsNoise(gpsNoise, rand.nextLong());
+    engine.setMissRadius(missRadius);
+    if (obstacles != null) {
+      engine.setObstacles(obstacles);
+    }
+    engine.setThrottle(true);
+    long maxTicks = (long) (maxTime * 1e9 / SimEngine.tickNanos);
+    while (!engine.isFinished() && engine.getTicks() < maxTicks && engine.step());
+    return new Result(run, params, engine);
+  }
+
+  /**
+   * Format the best results as a table, with distances converted to feet (and speeds to feet/sec)
+   * @param lat latitude of the route (for converting World Units to feet)
+   */
+  static String getTable (List<Result> results, int rows, double lat) {
+    double feet = GPSTileMap.GPSMap.feetPerWorldUnit(lat), ticksPerSec = 1e9 / SimEngine.tickNanos;
+    StringBuilder buf = new StringBuilder();
+    buf.append(String.format("%4s %6s %8s %7s %6s %4s %6s | %8s %8s %9s %8s %8s%n", "Rank", "Run", "Lap (s)", "XTE ft",
+                             "Missed", "Hits", "Bounds", "maxSteer", "ciRad ft", "wayRad ft", "accel", "maxSpeed"));
+    for (int ii = 0; ii < Math.min(rows, results.size()); ii++) {
+      Result res = results.get(ii);
+      double[] pp = res.params;
+      buf.append(String.format("%4d %6d %8s %7.2f %6d %4d %6d | %8.1f %8.2f %9.2f %8.2f %8.2f%n", ii + 1, res.run,
+                               res.finished ? String.format("%.2f", res.lapTime) : "DNF", res.maxCrossTrack, res.missed,
+                               res.hits - res.violations, res.violations,
+                               pp[MAX_STEER], pp[CI_RADIUS] * feet, pp[WAY_RADIUS] * feet,
+                               pp[ACCEL] * feet * ticksPerSec * ticksPerSec, pp[MAX_SPEED] * feet * ticksPerSec));
+    }
+    return buf.toString();
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Uniform grid spatial index of point items.  The plane is divided into square cells and each item is
+ * stored in the list for the cell containing its location, so finding the items near a point (or inside
+ * a rectangle) only needs to look at the few cells which overlap it, however many items are indexed.
+ *
+ * Items are tracked by identity, so an item can be moved or removed without searching for it.  Cell size
+ * should be chosen so a typical query covers no more than a few cells.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+public class SpatialGrid<T> {
+  private final double              cellSize;
+  private final Map<Long,List<T>>   cells = new HashMap<>();
+  private final Map<T,Long>         itemCells = new IdentityHashMap<>();
+
+  /**
+   * @param cellSize width and height of a cell (in the units of the item coordinates)
+   */
+  SpatialGrid (double cellSize) {
+    this.cellSize = cellSize;
+  }
+
+  void add (T item, double x, double y) {
+    long key = key(cell(x), cell(y));
+    Long old = itemCells.put(item, key);
+    if (old != null) {
+      removeFromCell(item, old);
+    }
+    cells.computeIfAbsent(key, k -> new ArrayList<>()).add(item);
+  }
+
+  /**
+   * Move an item to a new location
+   * @return false if item is not in the index
+   */
+  boolean move (T item, double x, double y) {
+    Long old = itemCells.get(item);
+    if (old == null) {
+      return false;
+    }
+    long key = key(cell(x), cell(y));
+    if (key != old) {
+      removeFromCell(item, old);
+      itemCells.put(item, key);
+      cells.computeIfAbsent(key, k -> new ArrayList<>()).add(item);
+    }
+    return true;
+  }
+
+  boolean remove (T item) {
+    Long old = itemCells.remove(item);
+    if (old == null) {
+      return false;
+    }
+    removeFromCell(item, old);
+    return true;
+  }
+
+  void clear () {
+    cells.clear();
+    itemCells.clear();
+  }
+
+  int size () {
+    return itemCells.size();
+  }
+
+  /**
+   * Visit every item in the cells which overlap a rectangle.  Note: items near, but outside of the
+   * rectangle may also be visited, so the visitor must do its own exact test.
+   */
+  void query (double x0, double y0, double x1, double y1, Consumer<T> visitor) {
+    int cx0 = cell(Math.min(x0, x1)), cx1 = cell(Math.max(x0, x1));
+    int cy0 = cell(Math.min(y0, y1)), cy1 = cell(Math.max(y0, y1));
+    if ((long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1) > cells.size()) {
+      // Rectangle covers more cells than are in use, so check the cells in use instead
+      for (Map.Entry<Long,List<T>> entry : cells.entrySet()) {
+        long key = entry.getKey();
+        int cx = (int) (key >> 32), cy = (int) key;
+        if (cx >= cx0 && cx <= cx1 && cy >= cy0 && cy <= cy1) {
+          entry.getValue().forEach(visitor);
+        }
+      }
+      return;
+    }
+    for (int cx = cx0; cx <= cx1; cx++) {
+      for (int cy = cy0; cy <= cy1; cy++) {
+        List<T> items = cells.get(key(cx, cy));
+        if (items != null) {
+          items.forEach(visitor);
+        }
+      }
+    }
+  }
+
+  private void removeFromCell (T item, long key) {
+    List<T> items = cells.get(key);
+    for (int ii = items.size() - 1; ii >= 0; ii--) {
+      if (items.get(ii) == item) {
+        // Note: order within a cell does not matter, so fill the hole with the last item
+        items.set(ii, items.get(items.size() - 1));
+        items.remove(items.size() - 1);
+        break;
+      }
+    }
+    if (items.isEmpty()) {
+      cells.remove(key);
+    }
+  }
+
+  private int cell (double val) {
+    return (int) Math.floor(val / cellSize);
+  }
+
+  private static long key (int cx, int cy) {
+    return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Persistent cache of downloaded map tile images.  Tiles are stored as individual files named by the
+ * SHA-1 hash of the parameters used to request them (center, zoom, maptype, size), so any map that
+ * overlaps an area that was fetched before reuses those tiles rather than downloading them again.
+ *
+ * An index file records the size of every cached tile in least recently used order, so lookups and
+ * evictions never need to scan the cache directory.  When the total size of the cache exceeds its
+ * budget, the least recently used tiles are deleted until it fits again.
+ *
+ * Only the index is guarded by the cache's lock.  Tile files are read, written and deleted outside it, so
+ * the threads fetching a map can use the cache in parallel.  A tile file which is missing or damaged when
+ * it is read (because it was evicted by another thread, etc) is treated as not cached.
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TileCache {
+  private static final int        indexMagic = 0x54434931;   // "TCI1"
+  private static final String     indexName = "index";
+  private final File              dir;
+  private final Map<String,Long>  entries = new LinkedHashMap<>(256, 0.75f, true);   // access ordered
+  private long                    maxBytes, totalBytes;
+  private boolean                 dirty;
+
+  TileCache (File dir, long maxBytes) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IllegalStateException("Unable to create directory " + dir);
+    }
+    try {
+      loadIndex();
+    } catch (IOException ex) {
+      deleteFiles(rebuildIndex());
+    }
+  }
+
+  /**
+   * Get cached tile data
+   * @param key tile request parameters
+   * @return cached data, or null if the tile is not in the cache
+   */
+  byte[] get (String key) {
+    String hash = hash(key);
+    synchronized (this) {
+      if (entries.get(hash) == null) {
+        return null;
+      }
+      dirty = true;
+    }
+    try {
+      return Files.readAllBytes(getFile(hash).toPath());
+    } catch (IOException ex) {
+      // File was evicted, deleted, or damaged, behind our back
+      remove(key);
+      return null;
+    }
+  }
+
+  void put (String key, byte[] data) {
+    String hash = hash(key);
+    File file = getFile(hash);
+    File tmp = null;
+    try {
+      // Note: temp file has a unique name, as another thread may be storing the same tile
+      tmp = Files.createTempFile(dir.toPath(), hash, ".tmp").toFile();
+      Files.write(tmp.toPath(), data);
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      if (tmp != null) {
+        tmp.delete();
+      }
+      ex.printStackTrace(System.out);
+      return;
+    }
+    List<File> evicted;
+    synchronized (this) {
+      Long old = entries.put(hash, (long) data.length);
+      totalBytes += data.length - (old != null ? old : 0);
+      dirty = true;
+      evicted = evict();
+    }
+    deleteFiles(evicted);
+  }
+
+  void remove (String key) {
+    String hash = hash(key);
+    synchronized (this) {
+      Long old = entries.remove(hash);
+      if (old != null) {
+        totalBytes -= old;
+        dirty = true;
+      }
+    }
+    getFile(hash).delete();
+  }
+
+  void setMaxBytes (long maxBytes) {
+    List<File> evicted;
+    synchronized (this) {
+      this.maxBytes = maxBytes;
+      evicted = evict();
+    }
+    deleteFiles(evicted);
+  }
+
+  synchronized long getSize () {
+    return totalBytes;
+  }
+
+  /**
+   * Write index to disk, if it has changed since the last call
+   */
+  synchronized void flush () {
+    if (!dirty) {
+      return;
+    }
+    File index = new File(dir, indexName);
+    File tmp = new File(dir, indexName + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.writeInt(indexMagic);
+      out.writeInt(entries.size());
+      // Note: iteration order is least recently used first, so order is preserved when reloaded
+      for (Map.Entry<String,Long> entry : entries.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeLong(entry.getValue());
+      }
+    } catch (IOException ex) {
+      ex.printStackTrace(System.out);
+      return;
+    }
+    try {
+      Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      dirty = false;
+    } catch (IOException ex) {
+      ex.printStackTrace(System.out);
+    }
+  }
+
+  // Remove least recently used tiles from the index until the cache fits its budget, and return their files
+  private List<File> evict () {
+    List<File> evicted = new ArrayList<>();
+    Iterator<Map.Entry<String,Long>> iter = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && iter.hasNext()) {
+      Map.Entry<String,Long> entry = iter.next();
+      totalBytes -= entry.getValue();
+      evicted.add(getFile(entry.getKey()));
+      iter.remove();
+      dirty = true;
+    }
+    return evicted;
+  }
+
+  private static void deleteFiles (List<File> files) {
+    for (File file : files) {
+      file.delete();
+    }
+  }
+
+  private void loadIndex () throws IOException {
+    File index = new File(dir, indexName);
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+      if (in.readInt() != indexMagic) {
+        throw new IOException("Invalid tile cache index");
+      }
+      int count = in.readInt();
+      for (int ii = 0; ii < count; ii++) {
+        String hash = in.readUTF();
+        long size = in.readLong();
+        entries.put(hash, size);
+        totalBytes += size;
+      }
+    }
+  }
+
+  // Recover from a missing, or damaged index by scanning the cache directory (order of use is lost)
+  private List<File> rebuildIndex () {
+    entries.clear();
+    totalBytes = 0;
+    File[] files = dir.listFiles((dir1, name) -> name.endsWith(".png"));
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        entries.put(name.substring(0, name.length() - 4), file.length());
+        totalBytes += file.length();
+      }
+    }
+    dirty = true;
+    return evict();
+  }
+
+  private File getFile (String hash) {
+    return new File(dir, hash + ".png");
+  }
+
+  private static String hash (String key) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] digest = md.digest(key.getBytes(StandardCharsets.UTF_8));
+      StringBuilder buf = new StringBuilder();
+      for (byte bb : digest) {
+        buf.append(Character.forDigit((bb >> 4) & 0x0F, 16));
+        buf.append(Character.forDigit(bb & 0x0F, 16));
+      }
+      return buf.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * Downloads a grid of map image tiles using a bounded pool of worker threads.  Each worker fetches the
+ * raw bytes for its tile (retrying with exponential backoff on failure) and decodes them, so decoding of
+ * one tile overlaps with network transfers for others.  Decoded tiles are handed back to the calling thread
+ * in completion order, but always tagged with their grid position so a failed tile can never shift the
+ * position of the tiles that follow it.
+ *
+ * If a TileCache is supplied, tiles are looked up in the cache before any network request is made and
+ * every tile that is fetched is added to it, so an interrupted or partially failed download can be
+ * repeated at the cost of only the missing tiles.
+ *
+ * Single tiles can also be requested with fetchAsync(), which uses a long lived pool of the same size
+ * (released by shutdown()) so maps can load tiles on demand.
+ */
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+public class TileDownloader {
+  private static final int    connectTimeout = 10000, readTimeout = 20000;
+  private final int           threads, retries;
+  private final long          backoff;
+  private final TileCache     cache;
+  private ExecutorService     asyncPool;
+
+  interface TileSource {
+    URL getTileUrl (int col, int row) throws IOException;
+
+    // Return the parameters that uniquely identify a tile's image, or null if it should not be cached
+    default String getCacheKey (int col, int row) {
+      return null;
+    }
+  }
+
+  interface TileListener {
+    void tileLoaded (int col, int row, BufferedImage tile);
+  }
+
+  interface ProgressListener {
+    void progress (int done, int total);
+  }
+
+  private static class Tile {
+    private final int           col, row;
+    private final BufferedImage img;
+    private final IOException   error;
+
+    private Tile (int col, int row, BufferedImage img, IOException error) {
+      this.col = col;
+      this.row = row;
+      this.img = img;
+      this.error = error;
+    }
+  }
+
+  /**
+   * @param threads number of concurrent downloads
+   * @param retries number of times a failed tile is retried before giving up on it
+   * @param backoff delay (in milliseconds) before the first retry, doubled for each retry after that
+   * @param cache tile cache (may be null)
+   */
+  TileDownloader (int threads, int retries, long backoff, TileCache cache) {
+    this.threads = Math.max(1, threads);
+    this.retries = Math.max(0, retries);
+    this.backoff = Math.max(0, backoff);
+    this.cache = cache;
+  }
+
+  TileDownloader (int threads, int retries, long backoff) {
+    this(threads, retries, backoff, null);
+  }
+
+  /**
+   * Downloads and decodes a cols x rows grid of tiles.  The listener and progress callbacks are invoked
+   * on the calling thread, so the listener can safely draw each tile into a shared composite image.
+   * All tiles are attempted even if some fail.
+   * @param cols number of columns of tiles
+   * @param rows number of rows of tiles
+   * @param src supplies the URL for each tile
+   * @param listener receives each tile as it is decoded
+   * @param progress receives count of completed tiles (may be null)
+   * @throws IOException if one or more tiles could not be loaded after all retries
+   * @throws InterruptedException if the calling thread is interrupted (pending downloads are cancelled)
+   */
+  void download (int cols, int rows, TileSource src, TileListener listener, ProgressListener progress)
+      throws IOException, InterruptedException {
+    int total = cols * rows;
+    ExecutorService pool = newPool(Math.min(threads, Math.max(1, total)));
+    CompletionService<Tile> done = new ExecutorCompletionService<>(pool);
+    try {
+      for (int col = 0; col < cols; col++) {
+        for (int row = 0; row < rows; row++) {
+          final int cc = col, rr = row;
+          done.submit(() -> loadTile(src, cc, rr));
+        }
+      }
+      int failed = 0;
+      IOException lastError = null;
+      for (int ii = 0; ii < total; ii++) {
+        Tile tile;
+        try {
+          tile = done.take().get();
+        } catch (ExecutionException ex) {
+          throw new IOException("Tile download failed", ex.getCause());
+        }
+        if (tile.img != null) {
+          listener.tileLoaded(tile.col, tile.row, tile.img);
+        } else {
+          failed++;
+          lastError = tile.error;
+        }
+        if (progress != null) {
+          progress.progress(ii + 1, total);
+        }
+      }
+      if (failed > 0) {
+        throw new IOException("Unable to download " + failed + " of " + total + " tiles", lastError);
+      }
+    } finally {
+      pool.shutdownNow();
+      if (cache != null) {
+        cache.flush();
+      }
+    }
+  }
+
+  /**
+   * Fetch and decode a single tile in the background.  Note: the listener, or onError, is called from a
+   * download thread, not the caller's thread.
+   */
+  synchronized void fetchAsync (TileSource src, int col, int row, TileListener listener, Consumer<IOException> onError) {
+    if (asyncPool == null) {
+      asyncPool = newPool(threads);
+    }
+    asyncPool.submit(() -> {
+      try {
+        Tile tile = loadTile(src, col, row);
+        if (tile.img != null) {
+          listener.tileLoaded(col, row, tile.img);
+        } else {
+          onError.accept(tile.error);
+        }
+      } catch (InterruptedException ex) {
+        // Pool was shut down
+      } catch (RuntimeException ex) {
+        // Note: the pool would silently discard the exception
+        onError.accept(new IOException(ex));
+      }
+    });
+  }
+
+  /**
+   * Cancel any pending fetchAsync() requests and save the cache index
+   */
+  synchronized void shutdown () {
+    if (asyncPool != null) {
+      asyncPool.shutdownNow();
+      asyncPool = null;
+    }
+    if (cache != null) {
+      cache.flush();
+    }
+  }
+
+  private static ExecutorService newPool (int size) {
+    return Executors.newFixedThreadPool(size, run -> {
+      Thread thread = new Thread(run, "TileDownloader");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private Tile loadTile (TileSource src, int col, int row) throws InterruptedException {
+    String key = cache != null ? src.getCacheKey(col, row) : null;
+    if (key != null) {
+      byte[] data = cache.get(key);
+      if (data != null) {
+        try {
+          BufferedImage img = ImageIO.read(new ByteArrayInputStream(data));
+          if (img != null) {
+            return new Tile(col, row, img, null);
+          }
+        } catch (IOException ex) {
+          // Fall through and download it again
+        }
+        cache.remove(key);
+      }
+    }
+    IOException error = null;
+    for (int attempt = 0; attempt <= retries; attempt++) {
+      if (attempt > 0) {
+        Thread.sleep(backoff << (attempt - 1));
+      }
+      try {
+        byte[] data = fetch(src.getTileUrl(col, row));
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(data));
+        if (img == null) {
+          throw new IOException("Unable to decode tile " + col + "," + row);
+        }
+        if (key != null) {
+          cache.put(key, data);
+        }
+        return new Tile(col, row, img, null);
+      } catch (IOException ex) {
+        error = ex;
+        if (!isRetryable(ex)) {
+          break;
+        }
+      }
+    }
+    return new Tile(col, row, null, error);
+  }
+
+  static byte[] fetch (URL url) throws IOException {
+    URLConnection conn = url.openConnection();
+    conn.setConnectTimeout(connectTimeout);
+    conn.setReadTimeout(readTimeout);
+    if (conn instanceof HttpURLConnection) {
+      int code = ((HttpURLConnection) conn).getResponseCode();
+      if (code != HttpURLConnection.HTTP_OK) {
+        ((HttpURLConnection) conn).disconnect();
+        throw new HttpStatusException(code, url);
+      }
+    }
+    try (InputStream in = conn.getInputStream()) {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream(64 * 1024);
+      byte[] buf = new byte[16 * 1024];
+      int len;
+      while ((len = in.read(buf)) >= 0) {
+        bout.write(buf, 0, len);
+      }
+      return bout.toByteArray();
+    }
+  }
+
+  // Client errors (bad key, bad request) will not go away by retrying, but throttling (429) and server errors might
+  private static boolean isRetryable (IOException ex) {
+    if (ex instanceof HttpStatusException) {
+      int code = ((HttpStatusException) ex).code;
+      return code == 429 || code >= 500;
+    }
+    return true;
+  }
+
+  static class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 4127739185520846311L;
+    private final int code;
+
+    HttpStatusException (int code, URL url) {
+      super("HTTP " + code + " from " + url.getHost());
+      this.code = code;
+    }
+  }
+}
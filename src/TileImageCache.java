@@ -0,0 +1,78 @@
+/*
+ * Least recently used cache of decoded map tile images bounded by a memory budget (in bytes) rather than
+ * by a number of entries, so tiles for all zoom levels can share one budget.  Keeps hit, miss and
+ * eviction counts so the effectiveness of the budget can be checked.
+ */
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class TileImageCache {
+  private final Map<Long,BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);   // access ordered
+  private long                          maxBytes, usedBytes;
+  private long                          hits, misses, evictions;
+
+  TileImageCache (long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Make key for a tile
+   * @param level zoom level
+   * @param col tile column (may be negative)
+   * @param row tile row (may be negative)
+   */
+  static long key (int level, int col, int row) {
+    return ((long) (level & 0xFF) << 56) | ((long) (col & 0x0FFFFFFF) << 28) | (row & 0x0FFFFFFF);
+  }
+
+  synchronized BufferedImage get (long key) {
+    BufferedImage tile = tiles.get(key);
+    if (tile != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return tile;
+  }
+
+  synchronized void put (long key, BufferedImage tile) {
+    BufferedImage old = tiles.put(key, tile);
+    if (old != null) {
+      usedBytes -= sizeOf(old);
+    }
+    usedBytes += sizeOf(tile);
+    trim();
+  }
+
+  synchronized void clear () {
+    tiles.clear();
+    usedBytes = 0;
+  }
+
+  synchronized void setMaxBytes (long maxBytes) {
+    this.maxBytes = maxBytes;
+    trim();
+  }
+
+  synchronized String getStats () {
+    return tiles.size() + " tiles, " + (usedBytes >> 20) + " of " + (maxBytes >> 20) + " MB, " + hits + " hits, " +
+           misses + " misses, " + evictions + " evictions";
+  }
+
+  private void trim () {
+    Iterator<BufferedImage> iter = tiles.values().iterator();
+    while (usedBytes > maxBytes && iter.hasNext()) {
+      usedBytes -= sizeOf(iter.next());
+      iter.remove();
+      evictions++;
+    }
+  }
+
+  private static long sizeOf (BufferedImage img) {
+    int bits = img.getColorModel().getPixelSize();
+    return (long) img.getWidth() * img.getHeight() * Math.max(1, (bits + 7) / 8);
+  }
+}
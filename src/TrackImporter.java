@@ -0,0 +1,344 @@
+/*
+ * Imports logged tracks from GPX and KML files as a route of waypoints.  Files are read with a streaming
+ * (StAX) parser, so only the current element is held in memory, and each point is passed straight to a
+ * Simplifier, which reduces a dense log (one point per GPS fix) to the waypoints needed to drive it.
+ *
+ * Points are taken from GPX track and route points (trkpt and rtept elements), and from KML coordinates
+ * (LineString coordinates and gx:Track gx:coord elements).  All the tracks in a file are joined, in order,
+ * into one route.
+ *
+ * Simplifiers work in feet on a local flat projection centered on the first point, which is accurate to
+ * well under a foot over the size of a course.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+public class TrackImporter {
+  private static final double   feetPerDegree = Math.toRadians(1) * 6371 * 3280.84;
+  private final XMLStreamReader reader;
+  private final Simplifier      simplifier;
+  private final char[]          token = new char[64];
+  private final double[]        coord = new double[3];
+  private int                   tokenLen, coordNum;
+  private boolean               spaceSeparated;
+
+  /**
+   * Reduces a stream of points to the waypoints of a route.  Note: a Simplifier is used for one import.
+   */
+  abstract static class Simplifier {
+    private WaypointStore out;
+    private String        sel;
+    private double        lat0, lon0, lonScale;
+    int                   points;
+
+    abstract void add (double x, double y);
+
+    // Called after the last point
+    abstract void finish ();
+
+    // Add the waypoint at a projected location
+    void emit (double x, double y) {
+      out.add(lat0 + y / feetPerDegree, lon0 + x / lonScale, sel, 0, 0);
+    }
+
+    private void start (WaypointStore out, String sel) {
+      this.out = out;
+      this.sel = sel;
+    }
+
+    private void addPoint (double lat, double lon) {
+      if (points++ == 0) {
+        lat0 = lat;
+        lon0 = lon;
+        lonScale = feetPerDegree * Math.cos(Math.toRadians(lat));
+      }
+      add((lon - lon0) * lonScale, (lat - lat0) * feetPerDegree);
+    }
+  }
+
+  /**
+   * Douglas-Peucker simplification, which keeps the fewest points needed for the route to stay within a
+   * tolerance of the track.  Needs the whole track, which is held as projected coordinates (16 bytes per
+   * point), and is simplified using an explicit stack, so long tracks can not overflow the call stack.
+   */
+  static class DouglasPeucker extends Simplifier {
+    private final double  tolerance;
+    private double[]      xs = new double[1024], ys = new double[1024];
+
+    /**
+     * @param tolerance maximum distance (in feet) of the track from the route
+     */
+    DouglasPeucker (double tolerance) {
+      this.tolerance = tolerance;
+    }
+
+    void add (double x, double y) {
+      int idx = points - 1;
+      if (idx == xs.length) {
+        xs = Arrays.copyOf(xs, idx * 2);
+        ys = Arrays.copyOf(ys, idx * 2);
+      }
+      xs[idx] = x;
+      ys[idx] = y;
+    }
+
+    void finish () {
+      if (points == 0) {
+        return;
+      }
+      boolean[] keep = new boolean[points];
+      keep[0] = keep[points - 1] = true;
+      int[] stack = new int[64];
+      int top = 0;
+      stack[top++] = 0;
+      stack[top++] = points - 1;
+      double tol2 = tolerance * tolerance;
+      while (top > 0) {
+        int end = stack[--top];
+        int start = stack[--top];
+        int worst = -1;
+        double worstDist = tol2;
+        for (int ii = start + 1; ii < end; ii++) {
+          double dist = segmentDistance2(xs[ii], ys[ii], xs[start], ys[start], xs[end], ys[end]);
+          if (dist > worstDist) {
+            worstDist = dist;
+            worst = ii;
+          }
+        }
+        if (worst >= 0) {
+          keep[worst] = true;
+          if (top + 4 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+          }
+          stack[top++] = start;
+          stack[top++] = worst;
+          stack[top++] = worst;
+          stack[top++] = end;
+        }
+      }
+      for (int ii = 0; ii < points; ii++) {
+        if (keep[ii]) {
+          emit(xs[ii], ys[ii]);
+        }
+      }
+    }
+
+    // Square of the distance from point (px, py) to the segment from (ax, ay) to (bx, by)
+    private static double segmentDistance2 (double px, double py, double ax, double ay, double bx, double by) {
+      double dx = bx - ax, dy = by - ay;
+      double len2 = dx * dx + dy * dy;
+      double tt = len2 > 0 ? ((px - ax) * dx + (py - ay) * dy) / len2 : 0;
+      tt = Math.max(0, Math.min(1, tt));
+      double ex = ax + tt * dx - px, ey = ay + tt * dy - py;
+      return ex * ex + ey * ey;
+    }
+  }
+
+  /**
+   * Distance and heading change thresholds, which keep a point once the track has turned far enough from the
+   * heading of the last kept point, or has gone too far from it.  Works in one pass with constant memory.
+   */
+  static class Threshold extends Simplifier {
+    private final double  minDist, maxDist, minTurn;
+    private double        keptX, keptY, keptHeading = Double.NaN, lastX, lastY;
+    private boolean       lastKept;
+
+    /**
+     * @param minDist minimum distance (in feet) between waypoints
+     * @param maxDist maximum distance (in feet) between waypoints
+     * @param minTurn change of heading (in degrees) which adds a waypoint
+     */
+    Threshold (double minDist, double maxDist, double minTurn) {
+      this.minDist = minDist;
+      this.maxDist = maxDist;
+      this.minTurn = Math.toRadians(minTurn);
+    }
+
+    void add (double x, double y) {
+      lastX = x;
+      lastY = y;
+      lastKept = false;
+      if (points == 1) {
+        keep(x, y);
+        return;
+      }
+      double dx = x - keptX, dy = y - keptY;
+      double dist = Math.sqrt(dx * dx + dy * dy);
+      if (dist < minDist) {
+        return;
+      }
+      double heading = Math.atan2(dx, dy);
+      double turn = Math.abs(Math.IEEEremainder(heading - keptHeading, 2 * Math.PI));
+      if (dist >= maxDist || Double.isNaN(keptHeading) || turn >= minTurn) {
+        keptHeading = heading;
+        keep(x, y);
+      }
+    }
+
+    void finish () {
+      if (points > 0 && !lastKept) {
+        emit(lastX, lastY);
+      }
+    }
+
+    private void keep (double x, double y) {
+      keptX = x;
+      keptY = y;
+      lastKept = true;
+      emit(x, y);
+    }
+  }
+
+  private TrackImporter (XMLStreamReader reader, Simplifier simplifier) {
+    this.reader = reader;
+    this.simplifier = simplifier;
+  }
+
+  /**
+   * Read a GPX or KML file into a new route
+   * @param sel speed setting for the waypoints
+   * @throws IOException if the file can not be read, is not valid XML, or has an invalid coordinate
+   */
+  static WaypointStore read (File file, Simplifier simplifier, String sel) throws IOException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    // Note: tracks never need a DTD, and external entities must not be fetched while importing a file
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    WaypointStore store = new WaypointStore();
+    simplifier.start(store, sel);
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()), 64 * 1024)) {
+      XMLStreamReader reader = factory.createXMLStreamReader(in);
+      try {
+        new TrackImporter(reader, simplifier).parse();
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException ex) {
+      Location loc = ex.getLocation();
+      String msg = ex.getNestedException() != null ? ex.getNestedException().getMessage() : ex.getMessage();
+      throw new IOException(loc != null ? "Line " + loc.getLineNumber() + ": " + msg : msg, ex);
+    }
+    if (simplifier.points == 0) {
+      throw new IOException("No track points found in " + file.getName());
+    }
+    simplifier.finish();
+    return store;
+  }
+
+  private void parse () throws XMLStreamException, IOException {
+    boolean inCoords = false;
+    while (reader.hasNext()) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          String name = reader.getLocalName();
+          if ("trkpt".equals(name) || "rtept".equals(name)) {
+            simplifier.addPoint(getAttribute("lat"), getAttribute("lon"));
+          } else if ("coordinates".equals(name) || "coord".equals(name)) {
+            // KML coordinates are "lon,lat[,alt]" tuples separated by spaces, gx:coord is one "lon lat alt"
+            inCoords = true;
+            spaceSeparated = "coord".equals(name);
+            tokenLen = coordNum = 0;
+          }
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+          if (inCoords) {
+            // Note: long text arrives in several chunks, so tuples are parsed a character at a time
+            char[] text = reader.getTextCharacters();
+            int end = reader.getTextStart() + reader.getTextLength();
+            for (int ii = reader.getTextStart(); ii < end; ii++) {
+              coordChar(text[ii]);
+            }
+          }
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          if (inCoords) {
+            endField();
+            endTuple();
+            inCoords = false;
+          }
+          break;
+      }
+    }
+  }
+
+  private void coordChar (char cc) throws IOException {
+    if (cc == ',' || (spaceSeparated && cc <= ' ')) {
+      endField();
+    } else if (cc <= ' ') {
+      endField();
+      endTuple();
+    } else if (tokenLen < token.length) {
+      token[tokenLen++] = cc;
+    } else {
+      throw error("Invalid coordinate \"" + new String(token, 0, tokenLen) + "...\"");
+    }
+  }
+
+  private void endField () throws IOException {
+    if (tokenLen > 0) {
+      if (coordNum < coord.length) {
+        coord[coordNum] = toDouble(new String(token, 0, tokenLen));
+      }
+      coordNum++;
+      tokenLen = 0;
+    }
+  }
+
+  private void endTuple () throws IOException {
+    int num = coordNum;
+    coordNum = 0;
+    if (num == 0) {
+      return;
+    }
+    if (num < 2) {
+      throw error("Expected longitude and latitude in coordinates");
+    }
+    simplifier.addPoint(checkLat(coord[1]), checkLon(coord[0]));
+  }
+
+  private double getAttribute (String name) throws IOException {
+    String val = reader.getAttributeValue(null, name);
+    if (val == null) {
+      throw error("Missing \"" + name + "\" attribute");
+    }
+    double num = toDouble(val.trim());
+    return "lat".equals(name) ? checkLat(num) : checkLon(num);
+  }
+
+  private double toDouble (String val) throws IOException {
+    try {
+      return Double.parseDouble(val);
+    } catch (NumberFormatException ex) {
+      throw error("Invalid number \"" + val + "\"");
+    }
+  }
+
+  private double checkLat (double lat) throws IOException {
+    if (!(lat >= -90 && lat <= 90)) {
+      throw error("Latitude out of range: " + lat);
+    }
+    return lat;
+  }
+
+  private double checkLon (double lon) throws IOException {
+    if (!(lon >= -180 && lon <= 180)) {
+      throw error("Longitude out of range: " + lon);
+    }
+    return lon;
+  }
+
+  private IOException error (String msg) {
+    return new IOException("Line " + reader.getLocation().getLineNumber() + ": " + msg);
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Undo and redo history made of command objects.  Each command holds only what is needed to reverse, and
+ * repeat one change (an item's old and new location, a deleted item and its position, etc), so the cost of
+ * a step depends on the size of the change, not on the size of what was changed.
+ *
+ * The history is limited to a number of steps and to an estimate of the memory held by its commands.  When
+ * either limit is exceeded the oldest steps are discarded.
+ */
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+public class UndoHistory {
+  private final int             maxSteps;
+  private final long            maxBytes;
+  private final Deque<Command>  undo = new ArrayDeque<>(), redo = new ArrayDeque<>();
+  private long                  bytes;
+  private Runnable              listener;
+
+  interface Command {
+    void undo ();
+
+    void redo ();
+
+    // Estimate of the memory (in bytes) held by the command
+    default long getSize () {
+      return 64;
+    }
+  }
+
+  /**
+   * @param maxSteps maximum number of steps which can be undone
+   * @param maxBytes maximum memory (in bytes) held by the commands for those steps
+   */
+  UndoHistory (int maxSteps, long maxBytes) {
+    this.maxSteps = maxSteps;
+    this.maxBytes = maxBytes;
+  }
+
+  static Command command (Runnable undo, Runnable redo, long size) {
+    return new Command() {
+      public void undo () {
+        undo.run();
+      }
+
+      public void redo () {
+        redo.run();
+      }
+
+      public long getSize () {
+        return size;
+      }
+    };
+  }
+
+  // Set a listener called when the history changes (to update the state of menu items, etc)
+  void setListener (Runnable listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Add a command for a change which has already been made
+   */
+  void add (Command cmd) {
+    for (Command old : redo) {
+      bytes -= old.getSize();
+    }
+    redo.clear();
+    undo.addLast(cmd);
+    bytes += cmd.getSize();
+    while (undo.size() > maxSteps || (bytes > maxBytes && undo.size() > 1)) {
+      bytes -= undo.removeFirst().getSize();
+    }
+    changed();
+  }
+
+  boolean canUndo () {
+    return !undo.isEmpty();
+  }
+
+  boolean canRedo () {
+    return !redo.isEmpty();
+  }
+
+  void undo () {
+    if (!undo.isEmpty()) {
+      Command cmd = undo.removeLast();
+      cmd.undo();
+      redo.addLast(cmd);
+      changed();
+    }
+  }
+
+  void redo () {
+    if (!redo.isEmpty()) {
+      Command cmd = redo.removeLast();
+      cmd.redo();
+      undo.addLast(cmd);
+      changed();
+    }
+  }
+
+  void clear () {
+    undo.clear();
+    redo.clear();
+    bytes = 0;
+    changed();
+  }
+
+  private void changed () {
+    if (listener != null) {
+      listener.run();
+    }
+  }
+}
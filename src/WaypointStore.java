@@ -0,0 +1,213 @@
+/*
+ * Columnar store for the waypoints of a route.  Each attribute is kept in its own primitive array, rather
+ * than as one object (plus a LonLat) per waypoint, so a route of tens of thousands of waypoints costs about
+ * 21 bytes per waypoint and bulk operations (projection, upload, CSV export) scan contiguous arrays.
+ *
+ * Speed settings are stored as short indexes into a table of the setting names used by the route, and the
+ * avoid barrels, jump ramp and raise flag options as bits in one byte.
+ */
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class WaypointStore implements Serializable {
+  private static final long serialVersionUID = 3154238819061741951L;
+  static final int          AVOID_BARRELS = 0x01, JUMP_RAMP = 0x02, RAISE_FLAG = 0x04;
+  private double[]          lat = new double[16], lon = new double[16];
+  private short[]           sel = new short[16], heading = new short[16];
+  private byte[]            flags = new byte[16];
+  private List<String>      selNames = new ArrayList<>();
+  private int               count;
+
+  int size () {
+    return count;
+  }
+
+  double getLat (int idx) {
+    return lat[check(idx)];
+  }
+
+  double getLon (int idx) {
+    return lon[check(idx)];
+  }
+
+  String getSel (int idx) {
+    return selNames.get(sel[check(idx)]);
+  }
+
+  int getHeading (int idx) {
+    return heading[check(idx)];
+  }
+
+  int getFlags (int idx) {
+    return flags[check(idx)];
+  }
+
+  boolean hasFlag (int idx, int flag) {
+    return (flags[check(idx)] & flag) != 0;
+  }
+
+  void add (double lat, double lon, String sel, int heading, int flags) {
+    insert(count, lat, lon, sel, heading, flags);
+  }
+
+  void insert (int idx, double lat, double lon, String sel, int heading, int flags) {
+    if (idx < 0 || idx > count) {
+      throw new IndexOutOfBoundsException("Waypoint " + idx + " of " + count);
+    }
+    if (count == this.lat.length) {
+      int size = Math.max(16, count * 2);
+      this.lat = Arrays.copyOf(this.lat, size);
+      this.lon = Arrays.copyOf(this.lon, size);
+      this.sel = Arrays.copyOf(this.sel, size);
+      this.heading = Arrays.copyOf(this.heading, size);
+      this.flags = Arrays.copyOf(this.flags, size);
+    }
+    int tail = count - idx;
+    System.arraycopy(this.lat, idx, this.lat, idx + 1, tail);
+    System.arraycopy(this.lon, idx, this.lon, idx + 1, tail);
+    System.arraycopy(this.sel, idx, this.sel, idx + 1, tail);
+    System.arraycopy(this.heading, idx, this.heading, idx + 1, tail);
+    System.arraycopy(this.flags, idx, this.flags, idx + 1, tail);
+    this.lat[idx] = lat;
+    this.lon[idx] = lon;
+    count++;
+    set(idx, sel, heading, flags);
+  }
+
+  void set (int idx, String sel, int heading, int flags) {
+    check(idx);
+    int code = selNames.indexOf(sel);
+    if (code < 0) {
+      code = selNames.size();
+      selNames.add(sel);
+    }
+    this.sel[idx] = (short) code;
+    this.heading[idx] = (short) heading;
+    this.flags[idx] = (byte) flags;
+  }
+
+  void setLoc (int idx, double lat, double lon) {
+    check(idx);
+    this.lat[idx] = lat;
+    this.lon[idx] = lon;
+  }
+
+  void remove (int idx) {
+    check(idx);
+    int tail = count - idx - 1;
+    System.arraycopy(lat, idx + 1, lat, idx, tail);
+    System.arraycopy(lon, idx + 1, lon, idx, tail);
+    System.arraycopy(sel, idx + 1, sel, idx, tail);
+    System.arraycopy(heading, idx + 1, heading, idx, tail);
+    System.arraycopy(flags, idx + 1, flags, idx, tail);
+    count--;
+  }
+
+  void clear () {
+    count = 0;
+    selNames.clear();
+  }
+
+  // Copies of the lat and lon columns (trimmed to size()) for bulk operations, such as batch projection
+  double[] copyLat () {
+    return Arrays.copyOf(lat, count);
+  }
+
+  double[] copyLon () {
+    return Arrays.copyOf(lon, count);
+  }
+
+  // Size of the data written by write()
+  int getEncodedSize () {
+    int size = 8 + count * 21;
+    for (String name : selNames) {
+      size += MarkFile.sizeOf(name);
+    }
+    return size;
+  }
+
+  /**
+   * Write the setting name table, then each column in turn (see MarkFile)
+   */
+  void write (ByteBuffer buf) {
+    buf.putInt(selNames.size());
+    for (String name : selNames) {
+      MarkFile.putString(buf, name);
+    }
+    buf.putInt(count);
+    buf.asDoubleBuffer().put(lat, 0, count);
+    buf.position(buf.position() + count * 8);
+    buf.asDoubleBuffer().put(lon, 0, count);
+    buf.position(buf.position() + count * 8);
+    buf.asShortBuffer().put(sel, 0, count);
+    buf.position(buf.position() + count * 2);
+    buf.asShortBuffer().put(heading, 0, count);
+    buf.position(buf.position() + count * 2);
+    buf.put(flags, 0, count);
+  }
+
+  /**
+   * Read waypoints written by write()
+   * @throws IOException if data is not valid
+   */
+  static WaypointStore read (ByteBuffer buf) throws IOException {
+    try {
+      WaypointStore store = new WaypointStore();
+      int names = buf.getInt();
+      for (int ii = 0; ii < names; ii++) {
+        store.selNames.add(MarkFile.getString(buf));
+      }
+      int count = buf.getInt();
+      if (count < 0 || count > buf.remaining() / 21) {
+        throw new IOException("Invalid waypoint count " + count);
+      }
+      store.lat = new double[Math.max(count, 16)];
+      store.lon = new double[store.lat.length];
+      store.sel = new short[store.lat.length];
+      store.heading = new short[store.lat.length];
+      store.flags = new byte[store.lat.length];
+      buf.asDoubleBuffer().get(store.lat, 0, count);
+      buf.position(buf.position() + count * 8);
+      buf.asDoubleBuffer().get(store.lon, 0, count);
+      buf.position(buf.position() + count * 8);
+      buf.asShortBuffer().get(store.sel, 0, count);
+      buf.position(buf.position() + count * 2);
+      buf.asShortBuffer().get(store.heading, 0, count);
+      buf.position(buf.position() + count * 2);
+      buf.get(store.flags, 0, count);
+      for (int ii = 0; ii < count; ii++) {
+        if (store.sel[ii] < 0 || store.sel[ii] >= names) {
+          throw new IOException("Invalid setting for waypoint " + ii);
+        }
+      }
+      store.count = count;
+      return store;
+    } catch (BufferUnderflowException ex) {
+      throw new IOException("Waypoint data truncated", ex);
+    }
+  }
+
+  private int check (int idx) {
+    if (idx < 0 || idx >= count) {
+      throw new IndexOutOfBoundsException("Waypoint " + idx + " of " + count);
+    }
+    return idx;
+  }
+
+  private void writeObject (ObjectOutputStream out) throws IOException {
+    // Don't save unused capacity
+    lat = Arrays.copyOf(lat, Math.max(count, 1));
+    lon = Arrays.copyOf(lon, lat.length);
+    sel = Arrays.copyOf(sel, lat.length);
+    heading = Arrays.copyOf(heading, lat.length);
+    flags = Arrays.copyOf(flags, lat.length);
+    out.defaultWriteObject();
+  }
+}